@@ -8,7 +8,8 @@ import java.security.cert.CertificateException;
 
 import android.annotation.TargetApi;
 import android.app.Fragment;
-import android.database.Cursor;
+import android.app.LoaderManager;
+import android.content.Loader;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
@@ -16,6 +17,7 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.CursorAdapter;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -28,9 +30,11 @@ import edu.ucsb.cs290.touch.to.text.remote.messages.ProtectedMessage;
 import edu.ucsb.cs290.touch.to.text.remote.messages.SignedMessage;
 import edu.ucsb.cs290.touch.to.text.remote.messages.TokenAuthMessage;
 
-public class ConversationDetailFragment extends Fragment {
+public class ConversationDetailFragment extends Fragment implements
+		LoaderManager.LoaderCallbacks<ConversationLoader.Result> {
 
 	public static final String ARG_ITEM_ID = "contact name";
+	private static final int MESSAGES_LOADER = 0;
 
 	Contact mItem;
 	ListView messageList;
@@ -66,22 +70,30 @@ public class ConversationDetailFragment extends Fragment {
 		rootView = inflater.inflate(R.layout.fragment_conversation_detail,
 				container, false);
 		messageList = (ListView) rootView.findViewById(R.id.messages_list);
-		messageList.setTranscriptMode(ListView.TRANSCRIPT_MODE_ALWAYS_SCROLL);
+		// Only follow new messages when already at the bottom, so that
+		// prepending older pages doesn't yank the list down.
+		messageList.setTranscriptMode(ListView.TRANSCRIPT_MODE_NORMAL);
 		messageList.setStackFromBottom(true);
+		messageList.setOnScrollListener(new AbsListView.OnScrollListener() {
+
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem,
+					int visibleItemCount, int totalItemCount) {
+				if (firstVisibleItem == 0 && totalItemCount > 0) {
+					loadOlderMessages();
+				}
+			}
+		});
 		if(((KeyActivity) getActivity()).mBound) {
 			inflateContact();
 		}
 		return rootView;
 	}
 
-	@Override
-	public void onDestroyView() {
-		if(messageList.getAdapter() != null) {
-			((CursorAdapter) messageList.getAdapter()).getCursor().close();
-		}
-		super.onDestroyView();
-	};
-	
 	private void sendMessage(View v) {
 		DatabaseHelper instance = ((KeyActivity) getActivity()).getInstance();
 		EditText messageToSend = (EditText) v
@@ -107,8 +119,6 @@ public class ConversationDetailFragment extends Fragment {
 		} catch (IOException e) {
 			Log.d("touch-to-text","Problem creating ProtectedMessage!", e);
 		}
-		new GetMessagesFromDBTask().execute(
-				((KeyActivity) getActivity()).mService.getInstance(), mItem);
 		TokenAuthMessage tm = new TokenAuthMessage(pm, mItem.getTokenKey(),
 				mItem.getToken());
 		new AsyncTask<TokenAuthMessage, Void, Void>() {
@@ -126,31 +136,53 @@ public class ConversationDetailFragment extends Fragment {
 		}.execute(tm);
 	}
 
-	private class GetMessagesFromDBTask extends AsyncTask<Object, Void, Cursor> {
-		private PublicKey author;
-		private PublicKey self;
-		
-		@Override
-		protected Cursor doInBackground(Object... ids) {
-			
-			Log.v("touch-to-text", "Updating message view");
-			DatabaseHelper databaseHelper = (DatabaseHelper) ids[0];
-			self = databaseHelper.getSealablePublicKey().sign();
-			Contact contact = (Contact) ids[1];
-			author = contact.getSigningKey();
-			return databaseHelper.getMessagesCursor(contact.getID());
+	@Override
+	public Loader<ConversationLoader.Result> onCreateLoader(int id, Bundle args) {
+		return new ConversationLoader(getActivity(), mItem.getID());
+	}
+
+	@Override
+	public void onLoadFinished(Loader<ConversationLoader.Result> loader,
+			ConversationLoader.Result result) {
+		MessagesListCursorAdapter adapter = (MessagesListCursorAdapter) messageList.getAdapter();
+		if (adapter == null) {
+			PublicKey self = ((KeyActivity) getActivity()).getInstance()
+					.getSealablePublicKey().sign();
+			messageList.setAdapter(new MessagesListCursorAdapter(getActivity(),
+					result.cursor, mItem.getSigningKey(), self));
+			return;
 		}
+		// Keep the visible row in place when older rows go in front of it.
+		int first = messageList.getFirstVisiblePosition();
+		View top = messageList.getChildAt(0);
+		int offset = (top == null) ? 0 : top.getTop();
+		// The loader owns its cursors, so the old one isn't closed here.
+		adapter.swapCursor(result.cursor);
+		if (result.prepended > 0) {
+			messageList.setSelectionFromTop(first + result.prepended, offset);
+		}
+	}
 
-		@Override
-		protected void onPostExecute(Cursor result) {
-			super.onPostExecute(result);
-			if (messageList.getAdapter() != null) {
-				((CursorAdapter) messageList.getAdapter()).swapCursor(result).close();
-			} else {
-				MessagesListCursorAdapter s = new MessagesListCursorAdapter(
-						getActivity(),result, author, self);
-				messageList.setAdapter(s);
-			}
+	@Override
+	public void onLoaderReset(Loader<ConversationLoader.Result> loader) {
+		if (messageList != null && messageList.getAdapter() != null) {
+			((CursorAdapter) messageList.getAdapter()).swapCursor(null);
+		}
+	}
+
+	/**
+	 * Start following the conversation. The loader survives configuration
+	 * changes, so this only queries the first time.
+	 */
+	private void loadMessages() {
+		getLoaderManager().initLoader(MESSAGES_LOADER, null, this);
+	}
+
+	private void loadOlderMessages() {
+		Loader<ConversationLoader.Result> loader = getLoaderManager()
+				.getLoader(MESSAGES_LOADER);
+		if (loader != null) {
+			((ConversationLoader) loader).loadOlder();
 		}
 	}
 
@@ -180,8 +212,7 @@ public class ConversationDetailFragment extends Fragment {
 	
 	private void checkDone() {
 		if(connectedA && connectedService) {
-			new GetMessagesFromDBTask().execute(
-					((KeyActivity) getActivity()).mService.getInstance(), mItem);
+			loadMessages();
 			if (rootView != null) {
 				inflateContact();
 			}
@@ -2,20 +2,23 @@ package edu.ucsb.cs290.touch.to.text;
 
 import android.app.Activity;
 import android.app.ListFragment;
+import android.app.LoaderManager;
+import android.content.CursorLoader;
+import android.content.Loader;
 import android.database.Cursor;
-import android.os.AsyncTask;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.View;
 import android.widget.CursorAdapter;
 import android.widget.ListView;
 import edu.ucsb.cs290.touch.to.text.crypto.Contact;
 import edu.ucsb.cs290.touch.to.text.crypto.ContactsListCursorAdapter;
-import edu.ucsb.cs290.touch.to.text.crypto.DatabaseHelper;
+import edu.ucsb.cs290.touch.to.text.crypto.MessagesProvider;
 
-public class ConversationListFragment extends ListFragment {
+public class ConversationListFragment extends ListFragment implements
+		LoaderManager.LoaderCallbacks<Cursor> {
 
 	private static final String STATE_ACTIVATED_POSITION = "activated_position";
+	private static final int CONVERSATIONS_LOADER = 0;
 
 	private Callbacks mCallbacks = sDummyCallbacks;
 	private int mActivatedPosition = ListView.INVALID_POSITION;
@@ -58,20 +61,15 @@ public class ConversationListFragment extends ListFragment {
 		mCallbacks = sDummyCallbacks;
 	}
 	
-	@Override
-	public void onDestroyView() {
-		if(getListAdapter() != null) {
-			Log.i("touch-to-text", "Closing cursor for List");
-			((CursorAdapter) getListAdapter()).getCursor().close();
-		}
-		super.onDestroyView();	
-	};
-
 	@Override
 	public void onListItemClick(ListView listView, View view, int position,
 			long id) {
 		super.onListItemClick(listView, view, position, id);
-		mCallbacks.onItemSelected(new Contact((Cursor) getListAdapter().getItem(position)));
+		Contact contact = ((KeyActivity) getActivity()).getInstance().getContact(id);
+		if (contact == null) {
+			contact = new Contact((Cursor) getListAdapter().getItem(position));
+		}
+		mCallbacks.onItemSelected(contact);
 	}
 
 	@Override
@@ -98,22 +96,32 @@ public class ConversationListFragment extends ListFragment {
 		mActivatedPosition = position;
 	}
 
-	private class GetContactsFromDBTask extends
-			AsyncTask<DatabaseHelper, Void, Cursor> {
-		@Override
-		protected Cursor doInBackground(DatabaseHelper... db) {
-			return db[0].getContactsCursor();
+	/**
+	 * The loader reloads when any conversation or contact changes, at most
+	 * once per notification window, and survives configuration changes.
+	 */
+	@Override
+	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+		CursorLoader loader = new CursorLoader(getActivity(),
+				MessagesProvider.CONVERSATIONS_URI, null, null, null, null);
+		loader.setUpdateThrottle(NewMessageNotifier.DEFAULT_WINDOW_MS);
+		return loader;
+	}
+
+	@Override
+	public void onLoadFinished(Loader<Cursor> loader, Cursor result) {
+		// The loader closes the cursor it replaces.
+		if (getListAdapter() != null) {
+			((CursorAdapter) getListAdapter()).swapCursor(result);
+		} else {
+			setListAdapter(new ContactsListCursorAdapter(getActivity(), result));
 		}
+	}
 
-		@Override
-		protected void onPostExecute(Cursor result) {
-			super.onPostExecute(result);
-			if (getListAdapter() != null) {
-				((CursorAdapter) getListAdapter()).swapCursor(result).close();
-			} else {
-				ContactsListCursorAdapter s = new ContactsListCursorAdapter(getActivity(), result);
-				setListAdapter(s);
-			}
+	@Override
+	public void onLoaderReset(Loader<Cursor> loader) {
+		if (getListAdapter() != null) {
+			((CursorAdapter) getListAdapter()).swapCursor(null);
 		}
 	}
 
@@ -126,7 +134,6 @@ public class ConversationListFragment extends ListFragment {
 	}
 
 	private void updateView() {
-		new GetContactsFromDBTask()
-		.execute(((KeyActivity) getActivity()).mService.getInstance());
+		getLoaderManager().initLoader(CONVERSATIONS_LOADER, null, this);
 	}
 }
@@ -0,0 +1,258 @@
+package edu.ucsb.cs290.touch.to.text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import edu.ucsb.cs290.touch.to.text.crypto.DatabaseHelper;
+import edu.ucsb.cs290.touch.to.text.crypto.MessagesProvider;
+
+/**
+ * Loads one conversation from {@link MessagesProvider} and follows it. The
+ * first load reads the newest page. After that, a change to the conversation
+ * only reads the messages stored since the newest one held, and
+ * {@link #loadOlder()} reads the page before the oldest one. The loader
+ * keeps every chunk it read and delivers them merged, so a new activity
+ * after a configuration change gets the same rows without a query.
+ *
+ * Marks the conversation read on every load.
+ */
+class ConversationLoader extends AsyncTaskLoader<ConversationLoader.Result> {
+
+	// Appends and prepends before the whole conversation is read again
+	static final int MAX_CHUNKS = 16;
+
+	/**
+	 * What a load read, and what is delivered.
+	 */
+	static final class Result {
+		// Read in the background; null if not part of this load
+		private Cursor reload;
+		private Cursor older;
+		private Cursor newer;
+		private boolean servedOlder;
+		private boolean olderRemaining;
+
+		/** Every row held, oldest first. Owned by the loader. */
+		Cursor cursor;
+		/** Rows just put in front of what was delivered before. */
+		int prepended;
+	}
+
+	private static final ContentValues MARK_READ = new ContentValues();
+	static {
+		MARK_READ.put(DatabaseHelper.READ, DatabaseHelper.MESSAGE_READ);
+	}
+
+	private final long contactID;
+	private final Uri uri;
+	private final ForceLoadContentObserver observer = new ForceLoadContentObserver();
+	private boolean observing = false;
+
+	// Oldest first; only touched on the main thread
+	private final List<Cursor> chunks = new ArrayList<Cursor>();
+	private Result current;
+
+	// Read by the load in the background
+	private volatile long newestID = -1;
+	private volatile long oldestDateTime = Long.MAX_VALUE;
+	private volatile long oldestId = Long.MAX_VALUE;
+	private volatile int shown = 0;
+	private volatile int chunkCount = 0;
+	private volatile boolean hasOlder = false;
+	private volatile boolean olderRequested = false;
+
+	ConversationLoader(Context context, long contactID) {
+		super(context);
+		this.contactID = contactID;
+		this.uri = MessagesProvider.conversationUri(contactID);
+		setUpdateThrottle(NewMessageNotifier.DEFAULT_WINDOW_MS);
+	}
+
+	/**
+	 * Read the page before the oldest message held, if there is one.
+	 */
+	void loadOlder() {
+		if (!hasOlder || olderRequested) {
+			return;
+		}
+		olderRequested = true;
+		onContentChanged();
+	}
+
+	@Override
+	public Result loadInBackground() {
+		ContentResolver resolver = getContext().getContentResolver();
+		resolver.update(MessagesProvider.readStateUri(contactID), MARK_READ,
+				null, null);
+		Result r = new Result();
+		if (newestID < 0 || chunkCount > MAX_CHUNKS) {
+			// Keep as many rows as are shown, so pages scrolled back to stay.
+			int limit = Math.max(DatabaseHelper.MESSAGES_PAGE_SIZE, shown);
+			r.reload = query(resolver, uri.buildUpon().appendQueryParameter(
+					MessagesProvider.PARAM_LIMIT, String.valueOf(limit)).build());
+			r.olderRemaining = r.reload != null && r.reload.getCount() >= limit;
+			return r;
+		}
+		if (olderRequested) {
+			r.servedOlder = true;
+			r.older = query(resolver, uri.buildUpon()
+					.appendQueryParameter(MessagesProvider.PARAM_BEFORE_TIME,
+							String.valueOf(oldestDateTime))
+					.appendQueryParameter(MessagesProvider.PARAM_BEFORE_ID,
+							String.valueOf(oldestId)).build());
+			r.olderRemaining = r.older != null
+					&& r.older.getCount() >= DatabaseHelper.MESSAGES_PAGE_SIZE;
+		}
+		r.newer = query(resolver, uri.buildUpon().appendQueryParameter(
+				MessagesProvider.PARAM_SINCE, String.valueOf(newestID)).build());
+		return r;
+	}
+
+	private static Cursor query(ContentResolver resolver, Uri uri) {
+		Cursor c = resolver.query(uri, null, null, null, null);
+		if (c != null) {
+			c.getCount(); // Fill the window off the UI thread
+		}
+		return c;
+	}
+
+	@Override
+	public void deliverResult(Result read) {
+		if (isReset()) {
+			release(read);
+			return;
+		}
+		List<Cursor> replaced = null;
+		int prepended = 0;
+		if (read.reload != null) {
+			replaced = new ArrayList<Cursor>(chunks);
+			chunks.clear();
+			chunks.add(read.reload);
+			newestID = -1;
+			noteNewest(read.reload);
+			noteOldest(read.reload);
+			hasOlder = read.olderRemaining;
+		}
+		if (read.servedOlder) {
+			olderRequested = false;
+			hasOlder = read.olderRemaining;
+		}
+		if (read.older != null && read.older.getCount() > 0) {
+			chunks.add(0, read.older);
+			prepended = read.older.getCount();
+			noteOldest(read.older);
+		} else if (read.older != null) {
+			read.older.close();
+		}
+		if (read.newer != null && read.newer.getCount() > 0) {
+			chunks.add(read.newer);
+			noteNewest(read.newer);
+		} else if (read.newer != null) {
+			read.newer.close();
+			if (prepended == 0 && current != null) {
+				return; // Nothing new to show
+			}
+		}
+		Result shownResult = new Result();
+		shownResult.cursor = chunks.isEmpty() ? null
+				: chunks.size() == 1 ? chunks.get(0) : new MergeCursor(
+						chunks.toArray(new Cursor[chunks.size()]));
+		shownResult.prepended = prepended;
+		shown = shownResult.cursor == null ? 0 : shownResult.cursor.getCount();
+		chunkCount = chunks.size();
+		current = shownResult;
+		if (isStarted()) {
+			super.deliverResult(shownResult);
+		}
+		// Only once nothing shows them any more
+		if (replaced != null) {
+			for (Cursor c : replaced) {
+				c.close();
+			}
+		}
+	}
+
+	private void noteNewest(Cursor c) {
+		int id = c.getColumnIndex(DatabaseHelper.MESSAGES_ID);
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			newestID = Math.max(newestID, c.getLong(id));
+		}
+	}
+
+	private void noteOldest(Cursor c) {
+		if (c.moveToFirst()) {
+			oldestDateTime = c.getLong(c.getColumnIndex(DatabaseHelper.DATE_TIME));
+			oldestId = c.getLong(c.getColumnIndex(DatabaseHelper.MESSAGES_ID));
+		}
+	}
+
+	/**
+	 * @return true if there may be messages before the oldest one held
+	 */
+	boolean hasOlder() {
+		return hasOlder;
+	}
+
+	@Override
+	protected void onStartLoading() {
+		if (!observing) {
+			// This conversation only; its read state is announced elsewhere.
+			getContext().getContentResolver().registerContentObserver(uri,
+					false, observer);
+			observing = true;
+		}
+		if (current != null) {
+			super.deliverResult(current);
+		}
+		if (takeContentChanged() || current == null) {
+			forceLoad();
+		}
+	}
+
+	@Override
+	protected void onStopLoading() {
+		cancelLoad();
+	}
+
+	@Override
+	public void onCanceled(Result read) {
+		release(read);
+	}
+
+	@Override
+	protected void onReset() {
+		super.onReset();
+		onStopLoading();
+		if (observing) {
+			getContext().getContentResolver().unregisterContentObserver(
+					observer);
+			observing = false;
+		}
+		for (Cursor c : chunks) {
+			c.close();
+		}
+		chunks.clear();
+		current = null;
+		newestID = -1;
+		shown = 0;
+		chunkCount = 0;
+	}
+
+	private static void release(Result read) {
+		if (read == null) {
+			return;
+		}
+		for (Cursor c : new Cursor[] { read.reload, read.older, read.newer }) {
+			if (c != null) {
+				c.close();
+			}
+		}
+	}
+}
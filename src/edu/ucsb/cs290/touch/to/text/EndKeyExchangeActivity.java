@@ -31,8 +31,9 @@ public class EndKeyExchangeActivity extends AbstractNFCExchangeActivity {
 		SealablePublicKey p = mService.getInstance().getSealablePublicKey();
 		Cipher c = Cipher.getInstance("AES");
 		c.init(Cipher.ENCRYPT_MODE, aesKey);
-		// Get Our PGP Public Key
-		return new SealedObject(p,c);
+		// Get Our PGP Public Key. Sent serialized, which every version
+		// reads; older ones skip the EC keys they don't know.
+		return new SealedObject(p, c);
 	}
 
 	@Override
@@ -40,7 +41,9 @@ public class EndKeyExchangeActivity extends AbstractNFCExchangeActivity {
 		Cipher c = Cipher.getInstance("AES");
 		c.init(Cipher.DECRYPT_MODE, aesKey);
 		SealedObject o = (SealedObject) sealed;
-		
-		p = (SealablePublicKey) o.getObject(c);
+		Object key = o.getObject(c);
+		// Some builds sent the key in the binary format instead.
+		p = (key instanceof byte[]) ? SealablePublicKey.fromBytes((byte[]) key)
+				: (SealablePublicKey) key;
 	}
 }
@@ -13,12 +13,10 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
-import android.os.Parcel;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Base64;
 import android.util.Log;
@@ -27,16 +25,18 @@ import android.widget.RemoteViews;
 import com.google.android.gcm.GCMRegistrar;
 
 import edu.ucsb.cs290.touch.to.text.crypto.DatabaseHelper;
-import edu.ucsb.cs290.touch.to.text.crypto.IntentDatabaseHelper;
+import edu.ucsb.cs290.touch.to.text.crypto.InboundPipeline;
 import edu.ucsb.cs290.touch.to.text.crypto.KeyPairsProvider;
+import edu.ucsb.cs290.touch.to.text.crypto.MessagesProvider;
+import edu.ucsb.cs290.touch.to.text.crypto.PendingInbox;
 import edu.ucsb.cs290.touch.to.text.https.TorProxy;
-import edu.ucsb.cs290.touch.to.text.remote.Helpers;
-import edu.ucsb.cs290.touch.to.text.remote.messages.ProtectedMessage;
 import edu.ucsb.cs290.touch.to.text.remote.register.RegisterUser;
 
 public class KeyManagementService extends Service {
 	private DatabaseHelper dbHelperInstance;
 	private volatile KeyPairsProvider kp;
+	private InboundPipeline pipeline;
+	private NewMessageNotifier newMessages;
 	private Timer timer;
 	private static final String TAG = KeyManagementService.class.getSimpleName();
 	private final IBinder binder = new KeyCachingBinder();
@@ -56,6 +56,7 @@ public class KeyManagementService extends Service {
 		if (dbHelperInstance == null) {
 			// Use global context for the app
 			dbHelperInstance = new DatabaseHelper(this);
+			MessagesProvider.attach(dbHelperInstance);
 		}
 		return dbHelperInstance;
 	}
@@ -83,6 +84,12 @@ public class KeyManagementService extends Service {
 		super.onCreate();
 		Log.i(TAG, "Service creating");
 		timer = new Timer("KeyExpirationTimer");
+		newMessages = new NewMessageNotifier(new NewMessageNotifier.Notifier() {
+			@Override
+			public void notifyNewMessages(int messages, int conversations) {
+				setCustomNotification(messages, conversations);
+			}
+		});
 		// timer.schedule(expireTask, 1000L, 60 * 1000L);
 	}
 
@@ -155,32 +162,68 @@ public class KeyManagementService extends Service {
 	}
 
 	private int handleMessageReceived(Intent intent) {
-		setCustomNotification();
+		final String payload = intent.getStringExtra("message");
 		if (dbHelperInstance != null && dbHelperInstance.initialized()) {
-			try {
-				final String stringExtra = intent.getStringExtra("message");
-				final byte[] decode = Base64.decode(
-						stringExtra,
-						Base64.DEFAULT);
-				final ProtectedMessage deserialize = (ProtectedMessage) Helpers
-						.deserialize(decode);
-				dbHelperInstance
-						.addIncomingMessage(deserialize);
-				LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(new Intent(REFRESH_VIEWS));
-			} catch (GeneralSecurityException e) {
-				Log.wtf(TAG, "Security problem!",e);
-			} 
+			// Decryption and storage happen on the pipeline's threads.
+			if (!getPipeline().submit(payload)) {
+				Log.w(TAG, "Inbound pipeline full, queueing message");
+				PendingInbox.getInstance(getApplicationContext()).add(
+						Base64.decode(payload, Base64.DEFAULT));
+				drainPendingInbox();
+			}
 		} else {
-			IntentDatabaseHelper.getInstance(getApplicationContext()).addIntentToDB(intent);
+			setCustomNotification();
+			PendingInbox.getInstance(getApplicationContext()).add(
+					Base64.decode(payload, Base64.DEFAULT));
 			stopSelf();
 		}
 		return START_REDELIVER_INTENT;
 	}
 
+	private synchronized InboundPipeline getPipeline() {
+		if (pipeline == null) {
+			pipeline = new InboundPipeline(getInstance(),
+					new InboundPipeline.Listener() {
+						@Override
+						public void onMessageStored(long contactID) {
+							newMessages.messageStored(contactID);
+						}
+					});
+		}
+		return pipeline;
+	}
+
+	/**
+	 * Lock: stop receiving and close the database on a thread of its own,
+	 * since waiting for the pipeline stages and the writer can take
+	 * seconds.
+	 */
 	private void clearKey() {
-		dbHelperInstance.forgetPassword();
+		newMessages.cancel();
 		kp = null;
-		this.stopSelf();
+		final InboundPipeline stopping;
+		synchronized (this) {
+			stopping = pipeline;
+			pipeline = null;
+		}
+		final DatabaseHelper helper = dbHelperInstance;
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// A drain would otherwise keep storing batches while the
+				// writer stops.
+				PendingInbox.getInstance(getApplicationContext())
+						.cancelDrain();
+				if (stopping != null) {
+					// Let messages in flight reach the writer before it stops.
+					stopping.shutdown();
+				}
+				if (helper != null) {
+					helper.forgetPassword();
+				}
+				stopSelf();
+			}
+		}, "KeyManagementService-lock").start();
 	}
 
 	@TargetApi(16)
@@ -207,15 +250,34 @@ public class KeyManagementService extends Service {
 		startForeground(SERVICE_RUNNING_ID, statusNotification);
 	}
 	
-	@TargetApi(16)
+	/**
+	 * How long to gather new messages into one notification.
+	 */
+	public void setNotificationWindow(long windowMs) {
+		newMessages.setWindow(windowMs);
+	}
+
 	public void setCustomNotification() {
+		setCustomNotification(0, 0);
+	}
+
+	/**
+	 * @param messages new messages to report, or 0 if not known
+	 * @param conversations how many conversations they are in
+	 */
+	@TargetApi(16)
+	public void setCustomNotification(int messages, int conversations) {
 		Intent showList = new Intent(this, ConversationListActivity.class);
 		PendingIntent showActivityIntent = PendingIntent.getService(
 				getApplicationContext(), 0, showList, 0);
 		Builder builder = new Notification.Builder(this);
 		builder.setSmallIcon(android.R.drawable.ic_lock_lock)
 				.setContentTitle("Touch to Text Secure Messaging")
-				.setContentText("New Message(s)")
+				.setContentText(messages == 0 ? "New Message(s)" : messages
+						+ (messages == 1 ? " new message" : " new messages")
+						+ (conversations > 1 ? " in " + conversations
+								+ " conversations" : ""))
+				.setNumber(messages)
 				.setWhen(System.currentTimeMillis())
 				.setAutoCancel(true)
 				.setDefaults(Notification.DEFAULT_ALL)
@@ -229,22 +291,26 @@ public class KeyManagementService extends Service {
 		((NotificationManager)getSystemService(NOTIFICATION_SERVICE)).notify(SERVICE_RUNNING_ID+1,statusNotification);
 	}
 
+	/**
+	 * Ingest the messages that arrived while locked.
+	 */
 	public void loggedIn() {
-		Cursor c = IntentDatabaseHelper
-				.getInstance(getApplicationContext())
-				.getIntentsCursor();
-		try {
-			for(c.moveToFirst(); !c.isAfterLast();c.moveToNext()) {
-				final byte[] blob = c.getBlob(c.getColumnIndex(IntentDatabaseHelper.INTENT_BODY));
-				final Parcel obtain = Parcel.obtain();
-				obtain.unmarshall(blob, 0,blob.length);
-				obtain.setDataPosition(0);
-				sendBroadcast((Intent) obtain.readValue(Intent.class.getClassLoader()));
+		drainPendingInbox();
+	}
+
+	/**
+	 * Ingest everything in the pending inbox in the background. Open views
+	 * reload through their loaders as each batch is committed.
+	 */
+	private void drainPendingInbox() {
+		final DatabaseHelper helper = getInstance();
+		new AsyncTask<Void, Void, Void>() {
+			@Override
+			protected Void doInBackground(Void... params) {
+				PendingInbox.getInstance(getApplicationContext())
+						.drainInto(helper);
+				return null;
 			}
-		} catch(Exception e) {
-			e.printStackTrace();
-		} finally {
-			c.close();
-		}
+		}.execute();
 	}
 }
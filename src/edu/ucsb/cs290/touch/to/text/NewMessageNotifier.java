@@ -0,0 +1,127 @@
+package edu.ucsb.cs290.touch.to.text;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Coalesces new-message notifications. Stored messages are collected for a
+ * short window after the first one, then reported as a single notification
+ * with the message and conversation counts. Views don't go through here:
+ * their loaders observe {@link edu.ucsb.cs290.touch.to.text.crypto.MessagesProvider}
+ * and are throttled to the same window.
+ */
+class NewMessageNotifier {
+
+	private static final String TAG = "touch-to-text";
+
+	static final long DEFAULT_WINDOW_MS = 500;
+
+	/**
+	 * Where the merged notification goes.
+	 */
+	interface Notifier {
+		void notifyNewMessages(int messages, int conversations);
+	}
+
+	private final Notifier notifier;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private volatile long windowMs = DEFAULT_WINDOW_MS;
+
+	// Pending for the current window: new messages per conversation
+	private final Map<Long, Integer> pending = new HashMap<Long, Integer>();
+	private boolean scheduled = false;
+
+	// Metrics
+	private int messages = 0;
+	private int notifications = 0;
+
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	NewMessageNotifier(Notifier notifier) {
+		this.notifier = notifier;
+	}
+
+	/**
+	 * How long to collect messages after the first one before notifying.
+	 * Zero notifies for each message on its own.
+	 */
+	void setWindow(long windowMs) {
+		this.windowMs = windowMs;
+	}
+
+	/**
+	 * A new message was stored in a conversation. Any thread.
+	 */
+	void messageStored(long contactID) {
+		synchronized (pending) {
+			Integer count = pending.get(contactID);
+			pending.put(contactID, count == null ? 1 : count + 1);
+			messages++;
+			if (!scheduled) {
+				scheduled = true;
+				handler.postDelayed(flush, windowMs);
+			}
+		}
+	}
+
+	private void flush() {
+		int windowMessages = 0;
+		int conversations;
+		synchronized (pending) {
+			for (Integer count : pending.values()) {
+				windowMessages += count;
+			}
+			conversations = pending.size();
+			pending.clear();
+			scheduled = false;
+			if (windowMessages == 0) {
+				return;
+			}
+			notifications++;
+		}
+		notifier.notifyNewMessages(windowMessages, conversations);
+		Log.d(TAG, "One notification for " + windowMessages + " messages; "
+				+ getCoalescedNotifications() + " notifications coalesced so far");
+	}
+
+	/**
+	 * @return notifications that were merged into another one
+	 */
+	int getCoalescedNotifications() {
+		synchronized (pending) {
+			return messages - notifications;
+		}
+	}
+
+	/**
+	 * Drop anything pending, e.g. when locking.
+	 */
+	void cancel() {
+		handler.removeCallbacks(flush);
+		synchronized (pending) {
+			messages -= countPending();
+			pending.clear();
+			scheduled = false;
+		}
+		Log.i(TAG, "New-message notifier: " + messages + " messages in "
+				+ notifications + " notifications, "
+				+ getCoalescedNotifications() + " coalesced");
+	}
+
+	private int countPending() {
+		int n = 0;
+		for (Integer count : pending.values()) {
+			n += count;
+		}
+		return n;
+	}
+}
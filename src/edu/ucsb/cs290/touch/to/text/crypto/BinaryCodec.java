@@ -0,0 +1,254 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignedObject;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import android.util.Log;
+import edu.ucsb.cs290.touch.to.text.remote.Helpers;
+
+/**
+ * Compact, versioned, length-prefixed encoding for the key types we store
+ * and exchange, instead of Java serialization. Every record starts with
+ * {@link #MAGIC}, a format version and a type tag; keys are stored as their
+ * algorithm name plus standard encoding (X.509 or PKCS#8).
+ *
+ * Java serialization streams always start with 0xACED, so the decoders
+ * tell the two formats apart by the first byte and still read old rows.
+ *
+ * SignedObjects can only be rebuilt by deserializing them, so tokens are
+ * still embedded in their serialized form.
+ */
+final class BinaryCodec {
+
+	static final byte MAGIC = (byte) 0xB7;
+	// 2 adds the KeySuite.EC_P256 keys, which may be absent
+	static final byte VERSION = 2;
+
+	private static final byte TYPE_SEALABLE_PUBLIC_KEY = 1;
+	private static final byte TYPE_KEY_PAIRS = 2;
+
+	private static final String TAG = "touch-to-text";
+
+	private BinaryCodec() {
+	}
+
+	static byte[] encode(SealablePublicKey key) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+			DataOutputStream out = header(bytes, TYPE_SEALABLE_PUBLIC_KEY);
+			writeKey(out, key.sign());
+			writeKey(out, key.encrypt());
+			writeKey(out, key.address());
+			writeSignedObject(out, key.token());
+			writeKey(out, key.sign(KeySuite.EC_P256));
+			writeKey(out, key.encrypt(KeySuite.EC_P256));
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// Only possible from the in-memory stream, i.e. never.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static byte[] encode(KeyPairsProvider keys) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(2048);
+			DataOutputStream out = header(bytes, TYPE_KEY_PAIRS);
+			writeKeyPair(out, keys.getSigningKey());
+			writeKeyPair(out, keys.getEncryptionKey());
+			writeKeyPair(out, keys.getTokenKey());
+			writeKeyPair(out, keys.getSigningKey(KeySuite.EC_P256));
+			writeKeyPair(out, keys.getEncryptionKey(KeySuite.EC_P256));
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decode a SealablePublicKey in either format.
+	 *
+	 * @return the key, or null if the bytes can't be read
+	 */
+	static SealablePublicKey decodeSealablePublicKey(byte[] b) {
+		if (!isBinary(b)) {
+			return (SealablePublicKey) Helpers.deserialize(b);
+		}
+		try {
+			DataInputStream in = open(b, TYPE_SEALABLE_PUBLIC_KEY);
+			PublicKey signing = (PublicKey) readKey(in);
+			PublicKey encrypting = (PublicKey) readKey(in);
+			PublicKey token = (PublicKey) readKey(in);
+			SignedObject signedToken = readSignedObject(in);
+			PublicKey ecSigning = null;
+			PublicKey ecEncrypting = null;
+			if (versionOf(b) >= 2) {
+				ecSigning = (PublicKey) readKey(in);
+				ecEncrypting = (PublicKey) readKey(in);
+			}
+			return new SealablePublicKey(signing, encrypting, token,
+					signedToken, ecSigning, ecEncrypting);
+		} catch (IOException e) {
+			Log.w(TAG, "Corrupt encoded public key", e);
+		} catch (GeneralSecurityException e) {
+			Log.w(TAG, "Unreadable encoded public key", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Decode a KeyPairsProvider in either format.
+	 *
+	 * @return the keys, or null if the bytes can't be read
+	 */
+	static KeyPairsProvider decodeKeyPairsProvider(byte[] b) {
+		if (!isBinary(b)) {
+			return (KeyPairsProvider) Helpers.deserialize(b);
+		}
+		try {
+			DataInputStream in = open(b, TYPE_KEY_PAIRS);
+			KeyPair signing = readKeyPair(in);
+			KeyPair encryption = readKeyPair(in);
+			KeyPair token = readKeyPair(in);
+			KeyPair ecSigning = null;
+			KeyPair ecEncryption = null;
+			if (versionOf(b) >= 2) {
+				ecSigning = readKeyPair(in);
+				ecEncryption = readKeyPair(in);
+			}
+			return new KeyPairsProvider(signing, encryption, token,
+					ecSigning, ecEncryption);
+		} catch (IOException e) {
+			Log.w(TAG, "Corrupt encoded key pairs", e);
+		} catch (GeneralSecurityException e) {
+			Log.w(TAG, "Unreadable encoded key pairs", e);
+		}
+		return null;
+	}
+
+	static boolean isBinary(byte[] b) {
+		return b != null && b.length > 0 && b[0] == MAGIC;
+	}
+
+	private static int versionOf(byte[] b) {
+		return b[1];
+	}
+
+	private static DataOutputStream header(ByteArrayOutputStream bytes,
+			byte type) throws IOException {
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(type);
+		return out;
+	}
+
+	private static DataInputStream open(byte[] b, byte type)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+		in.readByte(); // MAGIC
+		byte version = in.readByte();
+		if (version > VERSION) {
+			throw new IOException("Encoded with newer format version "
+					+ version);
+		}
+		byte actual = in.readByte();
+		if (actual != type) {
+			throw new IOException("Expected record type " + type + " but got "
+					+ actual);
+		}
+		return in;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] b)
+			throws IOException {
+		if (b == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] b = new byte[length];
+		in.readFully(b);
+		return b;
+	}
+
+	private static void writeKey(DataOutputStream out, Key key)
+			throws IOException {
+		if (key == null) {
+			out.writeUTF("");
+			return;
+		}
+		out.writeUTF(key.getAlgorithm());
+		out.writeBoolean(key instanceof PrivateKey);
+		writeBytes(out, key.getEncoded());
+	}
+
+	/**
+	 * @return a PublicKey for X.509 encodings, a PrivateKey for PKCS#8
+	 */
+	private static Key readKey(DataInputStream in) throws IOException,
+			GeneralSecurityException {
+		String algorithm = in.readUTF();
+		if (algorithm.length() == 0) {
+			return null;
+		}
+		boolean isPrivate = in.readBoolean();
+		byte[] encoded = readBytes(in);
+		KeyFactory factory = KeyFactory.getInstance(algorithm, "SC");
+		if (isPrivate) {
+			return factory.generatePrivate(new PKCS8EncodedKeySpec(encoded));
+		}
+		return factory.generatePublic(new X509EncodedKeySpec(encoded));
+	}
+
+	private static void writeKeyPair(DataOutputStream out, KeyPair pair)
+			throws IOException {
+		writeKey(out, pair == null ? null : pair.getPublic());
+		writeKey(out, pair == null ? null : pair.getPrivate());
+	}
+
+	/**
+	 * @return the pair, or null if it was written as null
+	 */
+	private static KeyPair readKeyPair(DataInputStream in) throws IOException,
+			GeneralSecurityException {
+		PublicKey publicKey = (PublicKey) readKey(in);
+		PrivateKey privateKey = (PrivateKey) readKey(in);
+		if (publicKey == null && privateKey == null) {
+			return null;
+		}
+		return new KeyPair(publicKey, privateKey);
+	}
+
+	private static void writeSignedObject(DataOutputStream out, SignedObject so)
+			throws IOException {
+		writeBytes(out, so == null ? null : Helpers.serialize(so));
+	}
+
+	private static SignedObject readSignedObject(DataInputStream in)
+			throws IOException {
+		byte[] b = readBytes(in);
+		return b == null ? null : (SignedObject) Helpers.deserialize(b);
+	}
+}
@@ -0,0 +1,93 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import android.util.Log;
+import edu.ucsb.cs290.touch.to.text.remote.Helpers;
+
+/**
+ * Compares {@link BinaryCodec} with the Java serialization it replaced, on
+ * this device: the size of a SealablePublicKey and of a KeyPairsProvider in
+ * each format, and the time to encode and decode them. Meant to be run by
+ * hand, from a debug build or a test harness, off the UI thread; generating
+ * the keys alone can take seconds.
+ */
+public final class BinaryCodecBenchmark {
+
+	private static final String TAG = "touch-to-text";
+
+	private BinaryCodecBenchmark() {
+	}
+
+	/**
+	 * @param iterations how many times to encode and decode each record in
+	 *            each format
+	 * @return one line per record and format with its size and milliseconds
+	 *         per encode and decode
+	 */
+	public static String run(int iterations) {
+		iterations = Math.max(1, iterations);
+		KeyPairsProvider keys = new KeyPairsProvider();
+		SealablePublicKey key = keys.getExternalKey();
+		StringBuilder report = new StringBuilder();
+
+		long start = System.nanoTime();
+		byte[] binary = null;
+		for (int i = 0; i < iterations; i++) {
+			binary = BinaryCodec.encode(key);
+		}
+		long encode = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			BinaryCodec.decodeSealablePublicKey(binary);
+		}
+		report.append(line("SealablePublicKey, binary", binary.length, encode,
+				System.nanoTime() - start, iterations));
+
+		start = System.nanoTime();
+		byte[] serialized = null;
+		for (int i = 0; i < iterations; i++) {
+			serialized = Helpers.serialize(key);
+		}
+		encode = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			Helpers.deserialize(serialized);
+		}
+		report.append(line("SealablePublicKey, serialized", serialized.length,
+				encode, System.nanoTime() - start, iterations));
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			binary = BinaryCodec.encode(keys);
+		}
+		encode = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			BinaryCodec.decodeKeyPairsProvider(binary);
+		}
+		report.append(line("KeyPairsProvider, binary", binary.length, encode,
+				System.nanoTime() - start, iterations));
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			serialized = Helpers.serialize(keys);
+		}
+		encode = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			Helpers.deserialize(serialized);
+		}
+		report.append(line("KeyPairsProvider, serialized", serialized.length,
+				encode, System.nanoTime() - start, iterations));
+
+		Log.i(TAG, "Binary codec benchmark, " + iterations + " iterations:\n"
+				+ report);
+		return report.toString();
+	}
+
+	private static String line(String name, int bytes, long encode,
+			long decode, int iterations) {
+		return String.format("%s: %d bytes, encode %.3f ms, decode %.3f ms%n",
+				name, bytes, encode / 1e6 / iterations, decode / 1e6
+						/ iterations);
+	}
+}
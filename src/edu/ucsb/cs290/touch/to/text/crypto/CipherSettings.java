@@ -0,0 +1,89 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
+
+/**
+ * SQLCipher tuning applied when the encrypted database is opened.
+ *
+ * cipher_page_size and kdf_iter are part of how the file is encrypted: they
+ * must match the values the database was created with, so only change them
+ * for a new database. cache_size and the journal mode can be changed freely,
+ * but the reader connections rely on WAL to read while the writer commits.
+ */
+public class CipherSettings {
+
+	/**
+	 * SQLCipher 2 defaults, which every existing database was created with,
+	 * in write-ahead logging mode.
+	 */
+	public static final CipherSettings DEFAULT = new CipherSettings(1024,
+			4000, 2000, "WAL");
+
+	private final int pageSize;
+	private final int kdfIterations;
+	private final int cacheSize;
+	private final String journalMode;
+
+	/**
+	 * @param pageSize cipher_page_size in bytes, a power of two
+	 * @param kdfIterations PBKDF2 iterations used to derive the key
+	 * @param cacheSize page cache size, in pages
+	 * @param journalMode e.g. WAL, DELETE, TRUNCATE or PERSIST
+	 */
+	public CipherSettings(int pageSize, int kdfIterations, int cacheSize,
+			String journalMode) {
+		this.pageSize = pageSize;
+		this.kdfIterations = kdfIterations;
+		this.cacheSize = cacheSize;
+		this.journalMode = journalMode;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public int getKdfIterations() {
+		return kdfIterations;
+	}
+
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	public String getJournalMode() {
+		return journalMode;
+	}
+
+	/**
+	 * Settings that have to be in place between keying the database and
+	 * first reading it.
+	 */
+	SQLiteDatabaseHook hook() {
+		return new SQLiteDatabaseHook() {
+			@Override
+			public void preKey(SQLiteDatabase db) {
+			}
+
+			@Override
+			public void postKey(SQLiteDatabase db) {
+				db.rawExecSQL("PRAGMA cipher_page_size = " + pageSize);
+				db.rawExecSQL("PRAGMA kdf_iter = " + kdfIterations);
+			}
+		};
+	}
+
+	/**
+	 * Settings for an open database.
+	 */
+	void apply(SQLiteDatabase db) {
+		db.rawExecSQL("PRAGMA cache_size = " + cacheSize);
+		db.rawExecSQL("PRAGMA journal_mode = " + journalMode);
+	}
+
+	@Override
+	public String toString() {
+		return "cipher_page_size=" + pageSize + ", kdf_iter=" + kdfIterations
+				+ ", cache_size=" + cacheSize + ", journal_mode=" + journalMode;
+	}
+}
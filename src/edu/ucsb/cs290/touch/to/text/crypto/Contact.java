@@ -5,7 +5,6 @@ import java.security.PublicKey;
 import java.security.SignedObject;
 
 import android.database.Cursor;
-import edu.ucsb.cs290.touch.to.text.remote.Helpers;
 
 public class Contact implements Serializable {
 	/**
@@ -16,28 +15,42 @@ public class Contact implements Serializable {
 	private final PublicKey encryptingKey;
 	private final PublicKey tokenKey;
 	private final SignedObject tokenToSend;
+	// Null unless the contact has keys for KeySuite.EC_P256
+	private final PublicKey ecSigningKey;
+	private final PublicKey ecEncryptingKey;
 
 	private final String name;
 	private final long id;
 
 	public Contact(Cursor c) {
-		this(c.getString(c.getColumnIndex(DatabaseHelper.NICKNAME)), 
-				(SealablePublicKey) Helpers.deserialize(c.getBlob(c.getColumnIndex(DatabaseHelper.PUBLIC_KEY))),
-				((SealablePublicKey) Helpers.deserialize(c.getBlob(c.getColumnIndex(DatabaseHelper.PUBLIC_KEY)))).token(), 
-				c.getLong(c.getColumnIndex(DatabaseHelper.CONTACTS_ID)));
+		this(c, SealablePublicKey.fromBytes(c.getBlob(c.getColumnIndex(DatabaseHelper.PUBLIC_KEY))));
+	}
+
+	private Contact(Cursor c, SealablePublicKey key) {
+		this(c.getString(c.getColumnIndex(DatabaseHelper.NICKNAME)), key,
+				key.token(), c.getLong(c.getColumnIndex(DatabaseHelper.CONTACTS_ID)));
 	}
 
 	public Contact(String name, PublicKey signing, PublicKey encrypting, PublicKey tokenKey,SignedObject so, long id) {
+		this(name, signing, encrypting, tokenKey, so, id, null, null);
+	}
+
+	private Contact(String name, PublicKey signing, PublicKey encrypting,
+			PublicKey tokenKey, SignedObject so, long id,
+			PublicKey ecSigning, PublicKey ecEncrypting) {
 		this.signingKey = signing;
 		this.encryptingKey = encrypting;
 		this.tokenKey = tokenKey;
 		this.name = name;
 		this.tokenToSend = so;
 		this.id = id;
+		this.ecSigningKey = ecSigning;
+		this.ecEncryptingKey = ecEncrypting;
 	}
 
 	public Contact(Contact c, SignedObject token) {
-		this(c.name,c.signingKey,c.encryptingKey,c.tokenKey,token,c.id);
+		this(c.name, c.signingKey, c.encryptingKey, c.tokenKey, token, c.id,
+				c.ecSigningKey, c.ecEncryptingKey);
 	}
 
 	public Contact(String name, SealablePublicKey key, SignedObject token,
@@ -48,6 +61,8 @@ public class Contact implements Serializable {
 		this.name = name;
 		this.tokenToSend = token;
 		this.id = newContactId;	
+		this.ecSigningKey = key.sign(KeySuite.EC_P256);
+		this.ecEncryptingKey = key.encrypt(KeySuite.EC_P256);
 	}
 
 	public PublicKey getSigningKey() {
@@ -75,7 +90,8 @@ public class Contact implements Serializable {
 	}
 
 	public SealablePublicKey getSealablePublicKey() {
-		return new SealablePublicKey(signingKey, encryptingKey,tokenKey, tokenToSend);
+		return new SealablePublicKey(signingKey, encryptingKey, tokenKey,
+				tokenToSend, ecSigningKey, ecEncryptingKey);
 	}
 
 	public long getID() {
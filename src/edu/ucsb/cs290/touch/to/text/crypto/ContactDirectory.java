@@ -0,0 +1,86 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Decoded contacts held in memory for the unlocked session, so that the
+ * receive path and the UI can resolve a fingerprint or an ID without
+ * querying the Contacts table or decoding a key blob. Loaded once at unlock
+ * and updated by every write that adds a contact or changes its key.
+ */
+class ContactDirectory {
+
+	static final class Entry {
+		final long id;
+		final String name;
+		final SealablePublicKey key;
+
+		Entry(long id, String name, SealablePublicKey key) {
+			this.id = id;
+			this.name = name;
+			this.key = key;
+		}
+
+		Contact toContact() {
+			return new Contact(name, key, key.token(), id);
+		}
+	}
+
+	private final Map<Long, Entry> byID = new ConcurrentHashMap<Long, Entry>();
+	private final Map<String, Long> byFingerprint = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Replace the contents with every row of the cursor, which needs the
+	 * _id, nickname and publicKey columns.
+	 */
+	void load(Cursor c) {
+		long time = System.currentTimeMillis();
+		clear();
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			SealablePublicKey key = SealablePublicKey.fromBytes(c.getBlob(c
+					.getColumnIndex(DatabaseHelper.PUBLIC_KEY)));
+			if (key != null) {
+				put(c.getLong(c.getColumnIndex(DatabaseHelper.CONTACTS_ID)),
+						c.getString(c.getColumnIndex(DatabaseHelper.NICKNAME)),
+						key);
+			}
+		}
+		Log.d("touch-to-text", "Loaded " + byID.size() + " contacts in "
+				+ (System.currentTimeMillis() - time) + " ms.");
+	}
+
+	void put(long id, String name, SealablePublicKey key) {
+		byID.put(id, new Entry(id, name, key));
+		byFingerprint.put(key.signingKeyFingerprint(), id);
+	}
+
+	/**
+	 * Replace a known contact's key, e.g. after receiving a new token.
+	 */
+	void updateKey(long id, SealablePublicKey key) {
+		Entry e = byID.get(id);
+		if (e != null) {
+			put(id, e.name, key);
+		}
+	}
+
+	Entry get(long id) {
+		return byID.get(id);
+	}
+
+	/**
+	 * @return the contact ID, or null if no contact has that fingerprint
+	 */
+	Long idForFingerprint(String fingerprint) {
+		return byFingerprint.get(fingerprint);
+	}
+
+	void clear() {
+		byID.clear();
+		byFingerprint.clear();
+	}
+}
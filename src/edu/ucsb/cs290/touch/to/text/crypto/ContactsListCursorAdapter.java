@@ -6,7 +6,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
-import android.widget.TextView;
+import android.widget.TwoLineListItem;
 
 public class ContactsListCursorAdapter extends CursorAdapter {
 
@@ -16,12 +16,21 @@ public class ContactsListCursorAdapter extends CursorAdapter {
 
 	@Override
 	public void bindView(View view, Context context, Cursor c) {
-		((TextView) view).setText(c.getString(c.getColumnIndex(DatabaseHelper.NICKNAME)));
+		TwoLineListItem v = (TwoLineListItem) view;
+		String name = c.getString(c.getColumnIndex(DatabaseHelper.NICKNAME));
+		int unread = c.getInt(c.getColumnIndex(DatabaseHelper.UNREAD_COUNT));
+		v.getText1().setText(unread > 0 ? name + " (" + unread + ")" : name);
+		String preview = c.getString(c.getColumnIndex(DatabaseHelper.PREVIEW));
+		if (preview != null
+				&& c.getInt(c.getColumnIndex(DatabaseHelper.LAST_DIRECTION)) == DatabaseHelper.DIRECTION_OUTGOING) {
+			preview = "Me: " + preview;
+		}
+		v.getText2().setText(preview);
 	}
 
 	@Override
 	public View newView(Context context, Cursor cursor, ViewGroup parent) {
-		return LayoutInflater.from(context).inflate(android.R.layout.simple_list_item_activated_1, parent, false);
+		return LayoutInflater.from(context).inflate(android.R.layout.simple_list_item_activated_2, parent, false);
 	}
 
 }
@@ -0,0 +1,524 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Times the queries behind the UI on this device, against a scratch
+ * database of synthetic conversations, so the user's own messages are never
+ * read or changed. The scratch database gets the same schema, migrations
+ * and triggers as the real one and is deleted afterwards. Meant to be run by
+ * hand, from a debug build or a test harness, off the UI thread; filling a
+ * million messages takes minutes.
+ */
+public final class DatabaseBenchmark {
+
+	private static final String TAG = "touch-to-text";
+	private static final String NAME = "benchmark.db";
+	private static final String PASSWORD = "benchmark";
+
+	// Synthetic history is spread evenly over this many contacts
+	static final int CONTACTS = 20;
+	private static final int INSERT_BATCH = 5000;
+	// About the size of a serialized SignedMessage
+	private static final byte[] BODY = new byte[1024];
+	private static final long EPOCH = 1350000000000L;
+	private static final long MINUTE = 60 * 1000L;
+	private static final String[] WORDS = { "the", "a", "to", "and", "you",
+			"I", "it", "is", "in", "of", "for", "on", "that", "me", "at",
+			"see", "now", "later", "home", "call", "meet", "lunch", "dinner",
+			"tomorrow", "tonight", "train", "late", "thanks", "sure", "okay",
+			"where", "when", "what", "soon", "office", "coffee", "weekend",
+			"movie", "bring", "keys" };
+	// In one message out of a thousand, for selective searches
+	static final String RARE_WORD = "zeppelin";
+	// What a search may take on 100k messages
+	static final int SEARCH_TARGET_MS = 50;
+
+	private DatabaseBenchmark() {
+	}
+
+	/**
+	 * Time the conversation and contact queries at 10k, 100k and 1M
+	 * messages: the newest page of a conversation, a page from the middle of
+	 * its history, the whole conversation as it was queried before schema
+	 * version 2 ("recipient = ? OR sender = ?"), the fingerprint lookup of
+	 * the receive path and the conversation list.
+	 *
+	 * @param queries how many times to run each query at each size
+	 * @return one line per query and size with p50 and p99 latency
+	 */
+	public static String runPaging(Context context, int queries) {
+		queries = Math.max(1, queries);
+		int[] sizes = { 10000, 100000, 1000000 };
+		StringBuilder report = new StringBuilder();
+		SQLiteDatabase db = create(context, CipherSettings.DEFAULT);
+		try {
+			Random random = new Random(0);
+			String page = DatabaseHelper.pageQuery(DatabaseHelper.MESSAGES_PAGE_SIZE);
+			String legacy = "SELECT " + DatabaseHelper.MESSAGES_ID + ", "
+					+ DatabaseHelper.DATE_TIME + ", "
+					+ DatabaseHelper.MESSAGE_BODY + ", "
+					+ DatabaseHelper.SENDER_ID + ", "
+					+ DatabaseHelper.RECIPIENT_ID + " FROM "
+					+ DatabaseHelper.MESSAGES_TABLE + " WHERE "
+					+ DatabaseHelper.RECIPIENT_ID + " = ? OR "
+					+ DatabaseHelper.SENDER_ID + " = ? ORDER BY "
+					+ DatabaseHelper.DATE_TIME + " ASC";
+			String fingerprint = "SELECT "
+					+ DatabaseHelper.CONTACTS_ID + " FROM "
+					+ DatabaseHelper.CONTACTS_TABLE + " WHERE "
+					+ DatabaseHelper.PUBLIC_KEY_FINGERPRINT + " = ? ORDER BY "
+					+ DatabaseHelper.DATE_TIME + " DESC";
+			int stored = 0;
+			for (int size : sizes) {
+				long time = System.nanoTime();
+				fill(db, stored, size);
+				stored = size;
+				report.append(String.format("%d messages, filled in %.1f s%n",
+						size, (System.nanoTime() - time) / 1e9));
+				long[] newest = new long[queries];
+				long[] middle = new long[queries];
+				long[] whole = new long[queries];
+				long[] lookup = new long[queries];
+				long[] list = new long[queries];
+				for (int q = 0; q < queries; q++) {
+					int contact = 1 + random.nextInt(CONTACTS);
+					String id = String.valueOf(contact);
+					String max = String.valueOf(Long.MAX_VALUE);
+					newest[q] = time(db, page, new String[] { id, max, max,
+							max });
+					// The contact's message nearest the middle of history
+					int i = size / 2 / CONTACTS * CONTACTS + contact - 1;
+					String date = String.valueOf(dateOf(i));
+					middle[q] = time(db, page, new String[] { id, date, date,
+							String.valueOf(i + 1) });
+					whole[q] = time(db, legacy, new String[] { id, id });
+					lookup[q] = time(db, fingerprint,
+							new String[] { fingerprintOf(contact) });
+					list[q] = time(db, DatabaseHelper.CONVERSATION_LIST_QUERY,
+							null);
+				}
+				report.append(line("  Newest page", newest));
+				report.append(line("  Middle page", middle));
+				report.append(line("  Whole conversation, before version 2",
+						whole));
+				report.append(line("  Fingerprint lookup", lookup));
+				report.append(line("  Conversation list", list));
+			}
+		} finally {
+			close(context, db);
+		}
+		Log.i(TAG, "Paging benchmark, " + queries + " queries each:\n"
+				+ report);
+		return report.toString();
+	}
+
+	/**
+	 * Time {@link DatabaseHelper#searchMessages}'s query and ranking on
+	 * 100k messages, for a common word, two words, a phrase, a prefix and a
+	 * rare word. The target is under {@link #SEARCH_TARGET_MS} ms.
+	 *
+	 * @param queries how many times to run each search
+	 * @return one line per search with its hits, p50 and p99 latency
+	 */
+	public static String runSearch(Context context, int queries) {
+		queries = Math.max(1, queries);
+		String[] searches = { "coffee", "meet tomorrow", "\"see you\"",
+				"tom*", RARE_WORD };
+		StringBuilder report = new StringBuilder();
+		SQLiteDatabase db = create(context, CipherSettings.DEFAULT);
+		try {
+			fill(db, 0, 100000);
+			long worst = 0;
+			for (String search : searches) {
+				long[] nanos = new long[queries];
+				int hits = 0;
+				for (int q = 0; q < queries; q++) {
+					long start = System.nanoTime();
+					hits = DatabaseHelper.searchHits(
+							db.rawQuery(DatabaseHelper.SEARCH_QUERY,
+									new String[] { search }), 20).size();
+					nanos[q] = System.nanoTime() - start;
+				}
+				worst = Math.max(worst, percentile(sorted(nanos), 99));
+				report.append(search).append(": ").append(hits)
+						.append(" hits, ").append(percentiles(nanos))
+						.append(String.format("%n"));
+			}
+			report.append(String.format("Worst p99 %.2f ms, target %d ms%n",
+					worst / 1e6, SEARCH_TARGET_MS));
+		} finally {
+			close(context, db);
+		}
+		Log.i(TAG, "Search benchmark on 100000 messages, " + queries
+				+ " queries each:\n" + report);
+		return report.toString();
+	}
+
+	/**
+	 * Time a cold open with each setting: keying the database, which runs
+	 * the key derivation, and the first query, which reads the schema. Then
+	 * time the newest page of a conversation on the open handle. Each
+	 * setting gets its own scratch database of 10k messages, since
+	 * cipher_page_size and kdf_iter fix how a file is encrypted.
+	 *
+	 * @param queries how many page queries to time per setting
+	 * @param settings the settings to compare, e.g.
+	 *            {@link CipherSettings#DEFAULT} and variants of it
+	 * @return one line per setting with open, first query and page latency
+	 */
+	public static String runCipherSettings(Context context, int queries,
+			CipherSettings... settings) {
+		queries = Math.max(1, queries);
+		StringBuilder report = new StringBuilder();
+		String page = DatabaseHelper.pageQuery(DatabaseHelper.MESSAGES_PAGE_SIZE);
+		String max = String.valueOf(Long.MAX_VALUE);
+		for (CipherSettings setting : settings) {
+			SQLiteDatabase db = create(context, setting);
+			try {
+				fill(db, 0, 10000);
+				db.close();
+				long start = System.nanoTime();
+				db = SQLiteDatabase.openDatabase(context.getDatabasePath(NAME)
+						.getPath(), PASSWORD, null,
+						SQLiteDatabase.OPEN_READWRITE, setting.hook());
+				setting.apply(db);
+				long keyed = System.nanoTime();
+				time(db, "SELECT count(*) FROM sqlite_master", null);
+				long firstQuery = System.nanoTime();
+				long[] nanos = new long[queries];
+				for (int q = 0; q < queries; q++) {
+					nanos[q] = time(db, page, new String[] {
+							String.valueOf(1 + q % CONTACTS), max, max, max });
+				}
+				report.append(String.format("%s: open %.1f ms, first query"
+						+ " %.1f ms, page %s%n", setting, (keyed - start) / 1e6,
+						(firstQuery - keyed) / 1e6, percentiles(nanos)));
+			} finally {
+				close(context, db);
+			}
+		}
+		Log.i(TAG, "Cipher settings benchmark, " + queries + " queries each:\n"
+				+ report);
+		return report.toString();
+	}
+
+	/**
+	 * Time paging through history while messages keep arriving. On 100k
+	 * messages, one thread stores a message at a fixed rate, each in its own
+	 * transaction as the writer thread would, while reader threads page
+	 * back through random conversations. Runs twice: with each reader on
+	 * its own read-only connection, as {@link ReaderPool} does, and with
+	 * everyone sharing the writer's connection, as before WAL.
+	 *
+	 * @param writesPerSecond how fast messages arrive
+	 * @param readers how many threads page through history
+	 * @param seconds how long each run lasts
+	 * @return one line per run with pages read, p50 and p99 latency
+	 */
+	public static String runContention(Context context, int writesPerSecond,
+			int readers, int seconds) {
+		StringBuilder report = new StringBuilder();
+		SQLiteDatabase db = create(context, CipherSettings.DEFAULT);
+		try {
+			fill(db, 0, 100000);
+			int stored = 100000;
+			for (boolean pooled : new boolean[] { true, false }) {
+				int[] written = new int[1];
+				long[] nanos = contend(context, db, stored, pooled,
+						Math.max(1, writesPerSecond), Math.max(1, readers),
+						Math.max(1, seconds) * 1000L, written);
+				stored += written[0];
+				report.append(String.format("%s: %d pages, %s, %d messages"
+						+ " stored meanwhile%n", pooled ? "Reader connections"
+						: "One shared connection", nanos.length,
+						nanos.length == 0 ? "no reads" : percentiles(nanos),
+						written[0]));
+			}
+		} finally {
+			close(context, db);
+		}
+		Log.i(TAG, "Contention benchmark, " + writesPerSecond
+				+ " writes/s and " + readers + " readers for " + seconds
+				+ " s:\n" + report);
+		return report.toString();
+	}
+
+	/**
+	 * @param written set to how many messages the writer stored
+	 * @return the latency of every page read
+	 */
+	private static long[] contend(Context context, final SQLiteDatabase db,
+			final int stored, boolean pooled, final int writesPerSecond,
+			int readers, long millis, final int[] written) {
+		final long deadline = System.currentTimeMillis() + millis;
+		final List<Long> latencies = new ArrayList<Long>();
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Random random = new Random();
+				SQLiteStatement insert = db
+						.compileStatement(StatementCache.Statement.INSERT_MESSAGE.sql);
+				long interval = 1000L / writesPerSecond;
+				try {
+					for (int i = stored; System.currentTimeMillis() < deadline; i++) {
+						long next = System.currentTimeMillis() + interval;
+						db.beginTransaction();
+						try {
+							bind(insert, i, random);
+							insert.executeInsert();
+							db.setTransactionSuccessful();
+						} finally {
+							db.endTransaction();
+						}
+						written[0]++;
+						long wait = next - System.currentTimeMillis();
+						if (wait > 0) {
+							Thread.sleep(wait);
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					insert.close();
+				}
+			}
+		}, "DatabaseBenchmark writer"));
+		for (int r = 0; r < readers; r++) {
+			final SQLiteDatabase reader = pooled ? SQLiteDatabase.openDatabase(
+					context.getDatabasePath(NAME).getPath(), PASSWORD, null,
+					SQLiteDatabase.OPEN_READONLY,
+					CipherSettings.DEFAULT.hook()) : db;
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						page(reader, deadline, latencies);
+					} finally {
+						if (reader != db) {
+							reader.close();
+						}
+					}
+				}
+			}, "DatabaseBenchmark reader " + r));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (latencies) {
+			long[] nanos = new long[latencies.size()];
+			for (int i = 0; i < nanos.length; i++) {
+				nanos[i] = latencies.get(i);
+			}
+			return nanos;
+		}
+	}
+
+	/**
+	 * Page back through random conversations, a few pages at a time from
+	 * the newest, until the deadline.
+	 */
+	private static void page(SQLiteDatabase db, long deadline,
+			List<Long> latencies) {
+		Random random = new Random();
+		String page = DatabaseHelper.pageQuery(DatabaseHelper.MESSAGES_PAGE_SIZE);
+		String max = String.valueOf(Long.MAX_VALUE);
+		while (System.currentTimeMillis() < deadline) {
+			String id = String.valueOf(1 + random.nextInt(CONTACTS));
+			String date = max;
+			String before = max;
+			for (int n = 0; n < 10 && System.currentTimeMillis() < deadline; n++) {
+				long start = System.nanoTime();
+				Cursor c = db.rawQuery(page, new String[] { id, date, date,
+						before });
+				try {
+					if (!c.moveToFirst()) {
+						break;
+					}
+					// The page is oldest first, so the next one ends here
+					date = c.getString(c
+							.getColumnIndex(DatabaseHelper.DATE_TIME));
+					before = c.getString(c
+							.getColumnIndex(DatabaseHelper.MESSAGES_ID));
+					while (c.moveToNext()) {
+					}
+				} finally {
+					c.close();
+				}
+				synchronized (latencies) {
+					latencies.add(System.nanoTime() - start);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A new scratch database with the current schema and {@link #CONTACTS}
+	 * contacts, replacing any left over from an earlier run.
+	 */
+	static SQLiteDatabase create(Context context, CipherSettings settings) {
+		SQLiteDatabase.loadLibs(context);
+		delete(context);
+		File path = context.getDatabasePath(NAME);
+		path.getParentFile().mkdirs();
+		SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path,
+				PASSWORD, null, settings.hook());
+		settings.apply(db);
+		db.beginTransaction();
+		try {
+			DatabaseHelper.createTables(db);
+			ContentValues values = new ContentValues();
+			for (int contact = 1; contact <= CONTACTS; contact++) {
+				values.put(DatabaseHelper.CONTACTS_ID, contact);
+				values.put(DatabaseHelper.NICKNAME, "Contact " + contact);
+				values.put(DatabaseHelper.PUBLIC_KEY_FINGERPRINT,
+						fingerprintOf(contact));
+				values.put(DatabaseHelper.DATE_TIME, EPOCH);
+				db.insert(DatabaseHelper.CONTACTS_TABLE, null, values);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return db;
+	}
+
+	/**
+	 * Store messages from..to-1 of the synthetic history, in batches of
+	 * {@link #INSERT_BATCH} per transaction, through the same statement and
+	 * triggers as received messages. Message i has _id i + 1 and belongs to
+	 * contact 1 + i % {@link #CONTACTS}.
+	 */
+	static void fill(SQLiteDatabase db, int from, int to) {
+		Random random = new Random(from);
+		SQLiteStatement insert = db
+				.compileStatement(StatementCache.Statement.INSERT_MESSAGE.sql);
+		try {
+			int i = from;
+			while (i < to) {
+				db.beginTransaction();
+				try {
+					for (int end = Math.min(to, i + INSERT_BATCH); i < end; i++) {
+						bind(insert, i, random);
+						insert.executeInsert();
+					}
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+		} finally {
+			insert.close();
+		}
+	}
+
+	/**
+	 * Close and delete the scratch database.
+	 */
+	static void close(Context context, SQLiteDatabase db) {
+		db.close();
+		delete(context);
+	}
+
+	static long dateOf(int i) {
+		return EPOCH + i * MINUTE;
+	}
+
+	/**
+	 * Run a query and step through every row, as binding a list would.
+	 *
+	 * @return nanoseconds taken
+	 */
+	static long time(SQLiteDatabase db, String sql, String[] args) {
+		long start = System.nanoTime();
+		Cursor c = db.rawQuery(sql, args);
+		try {
+			while (c.moveToNext()) {
+			}
+		} finally {
+			c.close();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return e.g. "p50 1.20 ms, p99 4.31 ms"
+	 */
+	static String percentiles(long[] nanos) {
+		long[] sorted = sorted(nanos);
+		return String.format("p50 %.2f ms, p99 %.2f ms",
+				percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6);
+	}
+
+	private static long[] sorted(long[] nanos) {
+		long[] sorted = Arrays.copyOf(nanos, nanos.length);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+	}
+
+	private static String line(String name, long[] nanos) {
+		return name + ": " + percentiles(nanos) + String.format("%n");
+	}
+
+	private static void bind(SQLiteStatement insert, int i, Random random) {
+		long contact = 1 + i % CONTACTS;
+		boolean outgoing = random.nextBoolean();
+		insert.bindBlob(1, BODY);
+		insert.bindLong(2, dateOf(i));
+		insert.bindLong(3, outgoing ? contact : DatabaseHelper.MY_CONTACT_ID);
+		insert.bindLong(4, outgoing ? DatabaseHelper.MY_CONTACT_ID : contact);
+		insert.bindLong(5, contact);
+		insert.bindString(6, sentence(i, random));
+		insert.bindLong(7, outgoing ? DatabaseHelper.DIRECTION_OUTGOING
+				: DatabaseHelper.DIRECTION_INCOMING);
+		insert.bindLong(8, DatabaseHelper.VERIFICATION_OK);
+		insert.bindLong(9, DatabaseHelper.MESSAGE_READ);
+		insert.bindNull(10);
+	}
+
+	private static String sentence(int i, Random random) {
+		StringBuilder s = new StringBuilder();
+		for (int n = 4 + random.nextInt(12); n > 0; n--) {
+			s.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		}
+		if (i % 1000 == 0) {
+			s.append(RARE_WORD).append(' ');
+		}
+		return s.toString().trim();
+	}
+
+	private static String fingerprintOf(int contact) {
+		return "fingerprint-" + contact;
+	}
+
+	private static void delete(Context context) {
+		File path = context.getDatabasePath(NAME);
+		for (String suffix : new String[] { "", "-journal", "-wal", "-shm" }) {
+			new File(path.getPath() + suffix).delete();
+		}
+	}
+}
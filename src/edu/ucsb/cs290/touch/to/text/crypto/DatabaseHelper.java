@@ -1,21 +1,35 @@
 package edu.ucsb.cs290.touch.to.text.crypto;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignedObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteOpenHelper;
+import net.sqlcipher.database.SQLiteQueryBuilder;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
@@ -23,6 +37,7 @@ import com.google.android.gcm.GCMRegistrar;
 
 import edu.ucsb.cs290.touch.to.text.R;
 import edu.ucsb.cs290.touch.to.text.remote.Helpers;
+import edu.ucsb.cs290.touch.to.text.remote.messages.Message;
 import edu.ucsb.cs290.touch.to.text.remote.messages.ProtectedMessage;
 import edu.ucsb.cs290.touch.to.text.remote.messages.SignedMessage;
 
@@ -41,6 +56,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	// DB Strings
 	public static final String MESSAGES_TABLE = "Messages";
 	public static final String CONTACTS_TABLE = "Contacts";
+	public static final String SUMMARY_TABLE = "ConversationSummary";
+	// Full-text index of PLAIN_BODY, keyed by docid = Messages._id
+	public static final String SEARCH_TABLE = "MessageSearch";
+	// Outgoing tokens signed ahead of time, see TokenPool
+	public static final String TOKEN_POOL_TABLE = "TokenPool";
 
 	// Messages Table
 	public static final String MESSAGES_ID = "_id";
@@ -49,12 +69,37 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	public static final String DATE_TIME = "dateTime";
 	public static final String READ = "read"; // 1 if read, 0 for unread
 	public static final String MESSAGE_BODY = "messageBody";
+	// The contact on the other side, whichever direction the message went
+	public static final String CONVERSATION_ID = "conversation_id";
+	// Verified plaintext, decoded once when the message is stored
+	public static final String PLAIN_BODY = "plainBody";
+	public static final String DIRECTION = "direction";
+	public static final String VERIFICATION = "verification";
+	// SHA-256 of the received ciphertext, unique, null for outgoing messages
+	public static final String DIGEST = "digest";
 
 	public static final int MESSAGE_READ = 1;
 	public static final int MESSAGE_UNREAD = 0;
 
+	public static final int DIRECTION_INCOMING = 0;
+	public static final int DIRECTION_OUTGOING = 1;
+
+	// Rows stored before version 3 have not been checked yet
+	public static final int VERIFICATION_UNCHECKED = 0;
+	public static final int VERIFICATION_OK = 1;
+	public static final int VERIFICATION_FAILED = 2;
+
+	// The signed blob is only read back for rows that were never verified
+	private static final String UNCHECKED_MESSAGE_BODY = "CASE WHEN "
+			+ VERIFICATION + " = " + VERIFICATION_UNCHECKED + " THEN "
+			+ MESSAGE_BODY + " END AS " + MESSAGE_BODY;
+
 	public static final String[] MESSAGES_CURSOR_COLUMNS = new String[] {
-		MESSAGES_ID, DATE_TIME, MESSAGE_BODY, SENDER_ID, RECIPIENT_ID };
+		MESSAGES_ID, DATE_TIME, PLAIN_BODY, DIRECTION, VERIFICATION,
+		SENDER_ID, RECIPIENT_ID, UNCHECKED_MESSAGE_BODY };
+
+	// Messages loaded per page of conversation history
+	public static final int MESSAGES_PAGE_SIZE = 50;
 
 	// Contacts Table
 	// Store the token used for sending in SPK PUBLIC_KEY
@@ -71,8 +116,50 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	public static final String[] CONTACT_CURSOR_COLUMNS = new String[] {
 		CONTACTS_ID, CONTACT_TOKEN, PUBLIC_KEY, NICKNAME };
 
+	// Conversation Summary Table, one row per contact with messages, kept
+	// up to date by triggers on the Messages table
+	public static final String SUMMARY_CONTACT_ID = "contact_id";
+	public static final String LAST_MESSAGE_TIME = "lastMessageTime";
+	public static final String PREVIEW = "preview";
+	public static final String UNREAD_COUNT = "unreadCount";
+	public static final String LAST_DIRECTION = "lastDirection";
+	static final int PREVIEW_LENGTH = 80;
+
+	// Token Pool Table
+	public static final String TOKEN_POOL_ID = "_id";
+	public static final String TOKEN_POOL_CONTACT = "contact_id";
+	public static final String TOKEN_POOL_TOKEN = "token";
+
+	// Newest matches considered for ranking, bounds search cost on common terms
+	private static final int SEARCH_CANDIDATES = 500;
+	// Newest candidates for an FTS query, the only argument
+	static final String SEARCH_QUERY = "SELECT m." + MESSAGES_ID + ", m."
+			+ CONVERSATION_ID + ", c." + NICKNAME + ", m." + DATE_TIME
+			+ ", snippet(" + SEARCH_TABLE + "), matchinfo(" + SEARCH_TABLE
+			+ ", 'pcnx') FROM " + SEARCH_TABLE + " JOIN " + MESSAGES_TABLE
+			+ " m ON m." + MESSAGES_ID + " = " + SEARCH_TABLE
+			+ ".docid LEFT JOIN " + CONTACTS_TABLE + " c ON c." + CONTACTS_ID
+			+ " = m." + CONVERSATION_ID + " WHERE " + SEARCH_TABLE
+			+ " MATCH ? ORDER BY " + SEARCH_TABLE + ".docid DESC LIMIT "
+			+ SEARCH_CANDIDATES;
+	// Messages read and verified per transaction by verifyHistory
+	private static final int HISTORY_BATCH_SIZE = 200;
+
+	// Everything the conversation list shows, in one join on the primary key
+	static final String CONVERSATION_LIST_QUERY = "SELECT c."
+			+ CONTACTS_ID + " AS " + CONTACTS_ID + ", c." + CONTACT_TOKEN
+			+ " AS " + CONTACT_TOKEN + ", c." + PUBLIC_KEY + " AS "
+			+ PUBLIC_KEY + ", c." + NICKNAME + " AS " + NICKNAME + ", s."
+			+ LAST_MESSAGE_TIME + " AS " + LAST_MESSAGE_TIME + ", s."
+			+ PREVIEW + " AS " + PREVIEW + ", IFNULL(s." + UNREAD_COUNT
+			+ ", 0) AS " + UNREAD_COUNT + ", s." + LAST_DIRECTION + " AS "
+			+ LAST_DIRECTION + " FROM " + CONTACTS_TABLE + " c LEFT JOIN "
+			+ SUMMARY_TABLE + " s ON s." + SUMMARY_CONTACT_ID + " = c."
+			+ CONTACTS_ID + " ORDER BY IFNULL(s." + LAST_MESSAGE_TIME
+			+ ", c." + DATE_TIME + ") DESC";
+
 	// My contact ID
-	private static final long MY_CONTACT_ID = -1;
+	static final long MY_CONTACT_ID = -1;
 
 	private static final String CREATE_MESSAGES_COMMAND = 
 			"CREATE TABLE " + MESSAGES_TABLE + " (  " 
@@ -95,12 +182,37 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 					+ CONTACT_NOTE + " TEXT);";
 
 	private static final String DATABASE_NAME = "touchToText.db";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 8;
 
 	// Databases and Context
-	private SQLiteDatabase db;
+	// Opened once per unlock and held until the password is forgotten
+	private volatile SQLiteDatabase db;
+	// Read-only connections for UI queries, so they never wait on the writer
+	private volatile ReaderPool readers;
 	private MasterPassword passwordInstance = null;
+	// Set once everything opened at unlock is ready, cleared first at lock
+	private volatile boolean unlocked = false;
+	// Serializes unlock and lock, which may run on different threads
+	private final Object unlocking = new Object();
 	private Context context;
+	private CipherSettings cipherSettings = CipherSettings.DEFAULT;
+
+	// Decoded key material, valid only while the password is held
+	private volatile KeyPairsProvider cachedKeys = null;
+	private final AtomicInteger keyRequests = new AtomicInteger();
+	private final AtomicInteger keyLoads = new AtomicInteger();
+
+	// All writes go through this queue while the database is unlocked. Read
+	// it once into a local: it is cleared on the UI thread at lock.
+	private volatile DatabaseWriter writer;
+	// Decoded contacts, kept in step with every contact write
+	private final ContactDirectory contacts = new ContactDirectory();
+	// Digests of recently received ciphertexts, to drop redeliveries
+	private final RecentDigests recentDigests = new RecentDigests();
+	// Pre-signed outgoing tokens, per unlock
+	private volatile TokenPool tokens;
+	// Precomputed DSA nonces, memory only, per unlock
+	private volatile SignaturePool signatures;
 
 	public DatabaseHelper(Context ctx) {
 		// calls the super constructor, requesting the default cursor factory.
@@ -109,8 +221,13 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 		context = ctx;
 	}
 
+	/**
+	 * @return true while the database is unlocked. Turns false before
+	 *         anything is closed at lock, so background loops that check it
+	 *         stop first.
+	 */
 	public boolean initialized() {
-		return passwordInstance != null;
+		return unlocked;
 	}
 
 	/**
@@ -119,25 +236,270 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	 * @param password
 	 */
 	public void initalizeInstance(String password) {
+		synchronized (unlocking) {
+			unlock(password);
+		}
+	}
+
+	private void unlock(String password) {
 		Log.i("db", "Intializing database");
-		if (passwordInstance == null) {
+		if (!unlocked) {
 			setPassword(password);
 			SQLiteDatabase.loadLibs(context);
-			db = this.getWritableDatabase(password);
+			db = open(password);
+			readers = new ReaderPool();
+			readers.open(context.getDatabasePath(DATABASE_NAME),
+					password.toCharArray(), cipherSettings);
+			writer = new DatabaseWriter(this);
+			KeyPairsProvider keys = loadKeyPairsProvider();
+			loadContacts();
+			signatures = new SignaturePool();
+			// On first launch the keys are still being generated; they are
+			// watched once GenerateKeysTask has them.
+			if (keys != null) {
+				watchTokenKey(keys);
+			}
+			tokens = new TokenPool(this);
+			tokens.load(db);
+			unlocked = true;
+			MessageBackfill.start(this);
+			// Loaders that found the database locked can read it now.
+			context.getContentResolver().notifyChange(
+					MessagesProvider.CONTENT_URI, null);
 		}
 	}
 
+	/**
+	 * Choose the SQLCipher settings used by the next
+	 * {@link #initalizeInstance(String)}. Page size and KDF iterations must
+	 * match the ones an existing database was created with.
+	 */
+	public void setCipherSettings(CipherSettings settings) {
+		cipherSettings = settings;
+	}
+
+	/**
+	 * Open the database with the cipher settings applied, creating or
+	 * upgrading it as SQLiteOpenHelper would. Key derivation happens here,
+	 * once per unlock.
+	 */
+	private SQLiteDatabase open(String password) {
+		long start = System.nanoTime();
+		File path = context.getDatabasePath(DATABASE_NAME);
+		path.getParentFile().mkdirs();
+		SQLiteDatabase opened = SQLiteDatabase.openOrCreateDatabase(path,
+				password, null, cipherSettings.hook());
+		cipherSettings.apply(opened);
+		long keyed = System.nanoTime();
+		int version = opened.getVersion();
+		long firstQuery = System.nanoTime();
+		if (version != DATABASE_VERSION) {
+			opened.beginTransaction();
+			try {
+				if (version == 0) {
+					onCreate(opened);
+				} else {
+					onUpgrade(opened, version, DATABASE_VERSION);
+				}
+				opened.setVersion(DATABASE_VERSION);
+				opened.setTransactionSuccessful();
+			} finally {
+				opened.endTransaction();
+			}
+		}
+		Log.i("db", "Opened database with " + cipherSettings + ": open "
+				+ (keyed - start) / 1000000 + " ms, first query "
+				+ (firstQuery - keyed) / 1000 + " us");
+		return opened;
+	}
+
+	/**
+	 * The database handle held for this unlocked session.
+	 */
+	SQLiteDatabase getDatabase() {
+		return db;
+	}
+
+	/**
+	 * Run a query that only needs committed data on a reader connection.
+	 * Falls back to the main handle until the reader connections are open.
+	 */
+	private Cursor readRaw(String sql, String[] selectionArgs) {
+		ReaderPool pool = readers;
+		Cursor c = pool == null ? null : pool.rawQuery(sql, selectionArgs);
+		if (c != null) {
+			return c;
+		}
+		SQLiteDatabase main = db;
+		if (main == null) {
+			throw new IllegalStateException("Database is locked");
+		}
+		return main.rawQuery(sql, selectionArgs);
+	}
+
+	/**
+	 * {@link SQLiteDatabase#query} through {@link #readRaw}.
+	 */
+	private Cursor read(String table, String[] columns, String selection,
+			String[] selectionArgs, String orderBy, String limit) {
+		return readRaw(SQLiteQueryBuilder.buildQueryString(false, table,
+				columns, selection, null, null, orderBy, limit), selectionArgs);
+	}
+
 	public void setPassword(String password) {
 		if (passwordInstance != null) {
+			cachedKeys = null;
 			passwordInstance.forgetPassword();
 		}
 		passwordInstance = MasterPassword.getInstance(password);
 	}
 
 	public void forgetPassword() {
+		synchronized (unlocking) {
+			lock();
+		}
+	}
+
+	private void lock() {
+		unlocked = false;
+		if (tokens != null) {
+			tokens.close();
+			tokens = null;
+		}
+		if (signatures != null) {
+			signatures.close();
+			signatures = null;
+		}
+		DatabaseWriter w = writer;
+		if (w != null) {
+			// Pending writes still need the key, so commit them first.
+			w.shutdown();
+			writer = null;
+		}
+		if (readers != null) {
+			readers.close();
+			readers = null;
+		}
+		// Holds a statement compiled against db
+		recentDigests.clear();
+		if (db != null) {
+			db.close();
+			db = null;
+		}
+		cachedKeys = null;
+		contacts.clear();
 		passwordInstance.forgetPassword();
 	}
 
+	DatabaseWriter getWriter() {
+		return writer;
+	}
+
+	/**
+	 * Block until every write queued so far has been handled. Don't call
+	 * this from the UI thread.
+	 * 
+	 * @return true if all of them were committed, false if the database is
+	 *         locked
+	 */
+	public boolean awaitPendingWrites() {
+		DatabaseWriter w = writer;
+		return w != null && w.flush();
+	}
+
+	/**
+	 * Run r on the writer thread once every write queued so far has been
+	 * handled, committed or not, e.g. to refresh views that should show
+	 * those writes.
+	 */
+	public void runAfterPendingWrites(Runnable r) {
+		DatabaseWriter w = writer;
+		if (w != null) {
+			w.runAfterPendingWrites(r);
+		} else {
+			r.run();
+		}
+	}
+
+	/**
+	 * Tell outcome, on the writer thread, whether every write queued so far
+	 * was committed. Told false at once if the database is locked.
+	 */
+	void afterPendingWrites(DatabaseWriter.Outcome outcome) {
+		DatabaseWriter w = writer;
+		if (w != null) {
+			w.afterPendingWrites(outcome);
+		} else {
+			outcome.done(false);
+		}
+	}
+
+	/**
+	 * Tell observers of uri, through {@link MessagesProvider}, once every
+	 * write queued so far is visible to readers.
+	 */
+	private void notifyChange(final Uri uri) {
+		runAfterPendingWrites(new Runnable() {
+			@Override
+			public void run() {
+				context.getContentResolver().notifyChange(uri, null);
+			}
+		});
+	}
+
+	/**
+	 * @return rows inserted per second of write transaction time this
+	 * session.
+	 */
+	public double getInsertsPerSecond() {
+		DatabaseWriter w = writer;
+		return w == null ? 0 : w.getInsertsPerSecond();
+	}
+
+	/**
+	 * @return executions and mean time of each compiled hot statement this
+	 * session.
+	 */
+	public String getStatementStatistics() {
+		DatabaseWriter w = writer;
+		return w == null ? "" : w.statementStatistics();
+	}
+
+	/**
+	 * How many pre-signed tokens to keep ready for each contact.
+	 */
+	public void setTokenPoolDepth(int depth) {
+		if (tokens != null) {
+			tokens.setDepth(depth);
+		}
+	}
+
+	/**
+	 * @return tokens ready, pool hits and misses, and mean refill latency
+	 * this session.
+	 */
+	public String getTokenPoolStatistics() {
+		return tokens == null ? "" : tokens.statistics();
+	}
+
+	/**
+	 * How many precomputed DSA nonces to keep ready for each signing key's
+	 * group.
+	 */
+	public void setSignaturePoolDepth(int depth) {
+		if (signatures != null) {
+			signatures.setDepth(depth);
+		}
+	}
+
+	/**
+	 * @return precomputed DSA nonces ready, hits and misses, and the mean
+	 *         cost of precomputing one this unlock.
+	 */
+	public String getSignaturePoolStatistics() {
+		return signatures == null ? "" : signatures.statistics();
+	}
+
 	/**
 	 * Erase the entire database file.
 	 * 
@@ -151,22 +513,37 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			if (tableExists(CONTACTS_TABLE)) {
 				db.rawExecSQL("DROP TABLE " + CONTACTS_TABLE);
 			}
+			if (tableExists(SUMMARY_TABLE)) {
+				db.rawExecSQL("DROP TABLE " + SUMMARY_TABLE);
+			}
+			if (tableExists(SEARCH_TABLE)) {
+				db.rawExecSQL("DROP TABLE " + SEARCH_TABLE);
+			}
+			if (tableExists(TOKEN_POOL_TABLE)) {
+				db.rawExecSQL("DROP TABLE " + TOKEN_POOL_TABLE);
+			}
+			if (tokens != null) {
+				tokens.clear();
+			}
 			createTables(db);
+			contacts.clear();
+			notifyChange(MessagesProvider.CONTENT_URI);
 			return true;
 		}
 		return false;
 	}
 
-	private void createTables(SQLiteDatabase db) {
+	static void createTables(SQLiteDatabase db) {
+		// Create the version 1 schema, then replay every migration on top.
 		db.execSQL(CREATE_MESSAGES_COMMAND);
 		db.execSQL(CREATE_CONTACTS_COMMAND);
+		SchemaMigrations.migrate(db, 1, DATABASE_VERSION);
 	}
 
 	private boolean tableExists(String table_name) {
 
 		String condition = "tbl_name = ?";
-		Cursor cursor = getReadableDatabase(
-				passwordInstance.getPasswordString()).query("sqlite_master",
+		Cursor cursor = getDatabase().query("sqlite_master",
 						new String[] { "tbl_name" }, condition,
 						new String[] { table_name }, null, null, null);
 
@@ -187,26 +564,83 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 		task.execute(new String[] { null });
 	}
 
-	// Don't do anything on upgrade! But must implement to work with schema
-	// changes.
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-
+		Log.i("db", "Upgrading database from version " + oldVersion + " to "
+				+ newVersion);
+		SchemaMigrations.migrate(db, oldVersion, newVersion);
 	}
 
 	public SealablePublicKey getSealablePublicKey() {
 		return getKeyPairsProvider().getExternalKey();
 	}
 
-	private KeyPairsProvider getKeyPairsProvider() {
+	/**
+	 * Returns the user's keys, decrypting and deserializing them from the
+	 * encrypted preferences at most once per unlock.
+	 */
+	KeyPairsProvider getKeyPairsProvider() {
+		keyRequests.incrementAndGet();
+		KeyPairsProvider kp = cachedKeys;
+		if (kp == null) {
+			kp = loadKeyPairsProvider();
+		}
+		return kp;
+	}
+
+	/**
+	 * Start precomputing signature tuples for the token key. Only tokens are
+	 * signed through the pool; tuples for the message key would sit in
+	 * memory unused.
+	 */
+	private void watchTokenKey(KeyPairsProvider keys) {
+		SignaturePool pool = signatures;
+		if (pool != null) {
+			pool.watch(keys.getTokenKey().getPrivate());
+		}
+	}
+
+	private synchronized KeyPairsProvider loadKeyPairsProvider() {
+		if (cachedKeys != null) {
+			return cachedKeys;
+		}
 		SecurePreferences encryptedPublicKey = new SecurePreferences(context,
 				TOUCH_TO_TEXT_PREFERENCES_XML,
 				passwordInstance.getPasswordString(), true);
 
 		String publicKeyString = encryptedPublicKey.getString(PUBLIC_KEY);
-		KeyPairsProvider kp = (KeyPairsProvider) Helpers.deserialize(Base64
-				.decode(publicKeyString, Base64.DEFAULT));
-		return kp;
+		if (publicKeyString == null) {
+			// Keys are still being generated on first launch.
+			return null;
+		}
+		byte[] stored = Base64.decode(publicKeyString, Base64.DEFAULT);
+		cachedKeys = BinaryCodec.decodeKeyPairsProvider(stored);
+		boolean upgraded = cachedKeys != null && cachedKeys.addMissingSuites();
+		if (cachedKeys != null && (upgraded || !BinaryCodec.isBinary(stored))) {
+			// Rewrite keys saved with Java serialization, or before a key
+			// suite was added, in the current format.
+			encryptedPublicKey.put(PUBLIC_KEY, Base64.encodeToString(
+					BinaryCodec.encode(cachedKeys), Base64.DEFAULT));
+		}
+		Log.d("touch-to-text", "Loaded keys from preferences, load #"
+				+ keyLoads.incrementAndGet() + " after "
+				+ keyRequests.get() + " requests");
+		return cachedKeys;
+	}
+
+	/**
+	 * @return how many times the keys have been requested this session.
+	 */
+	public int getKeyRequestCount() {
+		return keyRequests.get();
+	}
+
+	/**
+	 * @return how many times the keys were actually decrypted and
+	 * deserialized. Should stay at one per unlock.
+	 */
+	public int getKeyLoadCount() {
+		return keyLoads.get();
 	}
 
 	public KeyPair getSigningKey() {
@@ -218,17 +652,79 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 		return getKeyPairsProvider().getTokenKey();
 	}
 
-	public void addContact(Contact newContact) {
-		AddContactsToDBTask task = new AddContactsToDBTask();
-		task.execute(new Contact[] { newContact });
+	public void addContact(final Contact newContact) {
+		final SealablePublicKey key = newContact.getSealablePublicKey();
+		final ContentValues newUser = new ContentValues();
+		newUser.put(NICKNAME, newContact.toString());
+		newUser.put(PUBLIC_KEY, key.toBytes());
+		newUser.put(DATE_TIME, System.currentTimeMillis());
+		newUser.put(PUBLIC_KEY_FINGERPRINT, key.signingKeyFingerprint());
+		newUser.put(CONTACT_TOKEN, Helpers.serialize(newContact.getToken()));
+		DatabaseWriter w = writer;
+		if (w == null) {
+			Log.w("touch-to-text", "Database locked, contact not added");
+			return;
+		}
+		// The ID is only known once the row is inserted on the writer thread.
+		w.enqueue(new DatabaseWriter.Write() {
+			private long id = -1;
+
+			@Override
+			void apply(SQLiteDatabase db) {
+				id = db.insert(CONTACTS_TABLE, null, newUser);
+			}
+
+			@Override
+			void committed(boolean success) {
+				if (success && id != -1) {
+					contacts.put(id, newContact.getName(), key);
+					TokenPool pool = tokens;
+					if (pool != null) {
+						pool.prefill(id);
+					}
+					context.getContentResolver().notifyChange(
+							MessagesProvider.contactUri(id), null);
+				}
+			}
+
+			@Override
+			boolean isInsert() {
+				return true;
+			}
+		});
+	}
+
+	private void loadContacts() {
+		Cursor c = getDatabase()
+				.query(CONTACTS_TABLE, new String[] { CONTACTS_ID, NICKNAME,
+						PUBLIC_KEY }, null, null, null, null, null);
+		try {
+			contacts.load(c);
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * A contact by ID, from memory.
+	 * 
+	 * @return the contact, or null if there is none with that ID
+	 */
+	public Contact getContact(long contactID) {
+		ContactDirectory.Entry e = contacts.get(contactID);
+		return e == null ? null : e.toContact();
 	}
 
 	public void addOutgoingMessage(final SignedMessage signedMessage,
 			Contact contact) {
 		long time = 0;
+		String body = null;
+		int verification = VERIFICATION_FAILED;
 		try {
-			time = signedMessage.getMessage(getSigningKey().getPublic())
-					.getTimeSent();
+			Message m = signedMessage.getMessage(getSigningKey().getPublic());
+			time = m.getTimeSent();
+			body = m.getBody();
+			verification = VERIFICATION_OK;
 		} catch (GeneralSecurityException e) {
 			Log.wtf("Touch-to-text",
 					"Your keys may have been tampered with!?!?", e);
@@ -241,83 +737,195 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			time = System.currentTimeMillis();
 		}
 
-		AddMessageToDBTask task = new AddMessageToDBTask();
-		ContentValues newMessage = new ContentValues();
-		newMessage.put(MESSAGE_BODY, Helpers.serialize(signedMessage));
-		newMessage.put(DATE_TIME, time);
-		newMessage.put(RECIPIENT_ID, contact.getID());
-		newMessage.put(SENDER_ID, MY_CONTACT_ID);
-		newMessage.put(READ, 1);
-		task.execute(new ContentValues[] { newMessage });
+		DatabaseWriter w = writer;
+		if (w == null) {
+			Log.w("touch-to-text", "Database locked, sent message not stored");
+			return;
+		}
+		w.execute(StatementCache.Statement.INSERT_MESSAGE,
+				Helpers.serialize(signedMessage), time, contact.getID(),
+				MY_CONTACT_ID, contact.getID(), body, DIRECTION_OUTGOING,
+				verification, MESSAGE_READ, null);
 		// For sorting purposes, update last contacted.
-		UpdateLastContactedTask last = new UpdateLastContactedTask();
-		last.execute(new Long[] { contact.getID(), time });
+		w.updateLastContacted(contact.getID(), time);
+		notifyChange(MessagesProvider.conversationUri(contact.getID()));
 	}
 
-	// { MESSAGES_ID, DATE_TIME, MESSAGE_BODY, SENDER_ID, RECIPIENT_ID };
-
 	/**
-	 * Receive a message from a given contact. If the message contains a new
-	 * token, update the token in the Sealable Public Key. Always generate 
-	 * a new token to provide with the next outgoing message.
-	 * @param message
+	 * Receive a serialized ProtectedMessage, unless the same ciphertext has
+	 * already been received. Duplicates are recognized by digest before
+	 * anything is decrypted.
+	 * 
+	 * @param ciphertext the message as delivered
+	 * @return false if the message was a duplicate or could not be read
 	 * @throws GeneralSecurityException
 	 */
-	public void addIncomingMessage(ProtectedMessage message)
+	public boolean addIncomingMessage(byte[] ciphertext)
 			throws GeneralSecurityException {
-		//Get your own keys
-		KeyPairsProvider provider = getKeyPairsProvider();
+		InboundMessage m = admit(ciphertext);
+		if (m == null) {
+			return false;
+		}
+		boolean stored = false;
 		try {
-			SignedMessage recieved = message.getMessage(provider
-					.getEncryptionKey().getPrivate());
-
-			PublicKey author = recieved.getAuthor();
-			long time = recieved.getMessage(author).getTimeSent();
-
-			// Add unread, new message to DB
-			ContentValues newMessage = new ContentValues();
-			newMessage.put(MESSAGE_BODY, Helpers.serialize(recieved));
-			newMessage.put(DATE_TIME, time);
-			newMessage.put(RECIPIENT_ID, MY_CONTACT_ID);
-			newMessage.put(READ, 0);
-
-			// Use the key fingerprint to get the contactID.
-			String keyFingerprint = Helpers.getKeyFingerprint(author);
-			long contactID = getContactFromPublicKeySignature(keyFingerprint);
-			newMessage.put(SENDER_ID, contactID);
-			getReadableDatabase(passwordInstance.getPasswordString()).insert(
-					MESSAGES_TABLE, null, newMessage);
-
-			// For sorting purposes, update last contacted.
-			updateLastContacted(contactID, time);
-
-			// Update the tokens for this contact
-			SignedObject recievedToken = message.getToken(provider.getEncryptionKey().getPrivate());
-			updateToken(contactID, recievedToken);
+			decrypt(m);
+			verify(m);
+			resolve(m);
+			stored = persist(Collections.singletonList(m)) == 1;
 		} catch (IOException e) {
 			Log.d("Touch-to-text", "Error deserializing signed message", e);
 		} catch (ClassNotFoundException e) {
 			Log.d("Touch-to-text",
 					"Error, class not found in addIncomingMessage", e);
+		} finally {
+			if (!stored) {
+				discard(m);
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * @return how many redelivered messages were dropped this session.
+	 */
+	public long getDuplicateMessageCount() {
+		return recentDigests.getDuplicateCount();
+	}
+
+	/**
+	 * First step of receiving a message: check its digest.
+	 * 
+	 * @return the message to decrypt, or null if it was already received
+	 */
+	InboundMessage admit(byte[] ciphertext) {
+		byte[] digest = RecentDigests.digest(ciphertext);
+		if (!recentDigests.firstSighting(getDatabase(), digest)) {
+			Log.d("touch-to-text", "Dropped a duplicate message. "
+					+ recentDigests.statistics());
+			return null;
+		}
+		return new InboundMessage(ciphertext, digest);
+	}
+
+	/**
+	 * Give up on an admitted message that won't be stored, so a later
+	 * delivery of it is not mistaken for a duplicate.
+	 */
+	void discard(InboundMessage m) {
+		recentDigests.forget(m.digest);
+	}
+
+	/**
+	 * Open the envelope with our private key. Safe to call from any thread.
+	 */
+	void decrypt(InboundMessage m) throws GeneralSecurityException,
+			IOException, ClassNotFoundException {
+		PrivateKey key = getKeyPairsProvider().getEncryptionKey().getPrivate();
+		ProtectedMessage message = (ProtectedMessage) Helpers
+				.deserialize(m.ciphertext);
+		m.signed = message.getMessage(key);
+		m.receivedToken = message.getToken(key);
+	}
+
+	/**
+	 * Check the author's signature, once; the list only ever reads the
+	 * plaintext. Safe to call from any thread.
+	 */
+	void verify(InboundMessage m) throws GeneralSecurityException,
+			IOException, ClassNotFoundException {
+		m.author = m.signed.getAuthor();
+		m.plain = m.signed.getMessage(m.author);
+	}
+
+	/**
+	 * Use the key fingerprint to get the contactID, and take the token we
+	 * will hand this contact next from its pool.
+	 */
+	void resolve(InboundMessage m) {
+		m.contactID = getContactFromPublicKeySignature(Helpers
+				.getKeyFingerprint(m.author));
+		if (m.contactID != MY_CONTACT_ID) {
+			m.outgoingToken = tokens.take(m.contactID);
 		}
 	}
 
-	private void updateLastContacted(long contactID, long dateTime) {	
-		ContentValues updateDateContacted = new ContentValues();
-		updateDateContacted.put(CONTACTS_ID, contactID);
-		updateDateContacted.put(DATE_TIME, dateTime);
-		getReadableDatabase(passwordInstance.getPasswordString()).update(
-				CONTACTS_TABLE, updateDateContacted,
-				CONTACTS_ID + "=" + contactID, null);
+	/**
+	 * Queue verified, resolved messages for storage in the order given, all
+	 * in one write transaction. For each message, the unread row is added,
+	 * the contact's last contacted time moves forward, and its token is
+	 * updated. If the transaction is rolled back, the messages are
+	 * discarded so that a redelivery isn't taken for a duplicate, as they
+	 * are if the database is already locked.
+	 * 
+	 * @return the number of messages queued
+	 */
+	int persist(List<InboundMessage> messages) {
+		DatabaseWriter writer = this.writer;
+		if (writer == null) {
+			for (InboundMessage m : messages) {
+				if (m != null && m.isVerified()) {
+					discard(m);
+				}
+			}
+			return 0;
+		}
+		List<DatabaseWriter.Write> writes = new ArrayList<DatabaseWriter.Write>();
+		Set<Long> conversations = new LinkedHashSet<Long>();
+		final List<InboundMessage> stored = new ArrayList<InboundMessage>();
+		for (InboundMessage m : messages) {
+			if (m == null || !m.isVerified()) {
+				continue;
+			}
+			long time = m.plain.getTimeSent();
+			writes.add(writer.prepared(StatementCache.Statement.INSERT_MESSAGE,
+					Helpers.serialize(m.signed), time, MY_CONTACT_ID,
+					m.contactID, m.contactID, m.plain.getBody(),
+					DIRECTION_INCOMING, VERIFICATION_OK, MESSAGE_UNREAD,
+					m.digest));
+			// For sorting purposes, update last contacted.
+			writes.add(writer.lastContacted(m.contactID, time));
+			DatabaseWriter.Write token = updateToken(writer, m.contactID,
+					m.receivedToken, m.outgoingToken);
+			if (token != null) {
+				writes.add(token);
+			}
+			conversations.add(m.contactID);
+			stored.add(m);
+		}
+		if (writes.isEmpty()) {
+			return 0;
+		}
+		writes.add(new DatabaseWriter.Write() {
+			@Override
+			void apply(SQLiteDatabase db) {
+			}
+
+			@Override
+			void committed(boolean success) {
+				if (!success) {
+					for (InboundMessage m : stored) {
+						discard(m);
+					}
+				}
+			}
+		});
+		writer.enqueueBatch(writes);
+		for (long contactID : conversations) {
+			notifyChange(MessagesProvider.conversationUri(contactID));
+		}
+		return stored.size();
 	}
 
-	private SealablePublicKey getContactSPK(long contactID) {
+	SealablePublicKey getContactSPK(long contactID) {
+		ContactDirectory.Entry e = contacts.get(contactID);
+		if (e != null) {
+			return e.key;
+		}
 		Cursor cursor = null;
 		try {
 			String sortOrder = DATE_TIME + " DESC";
 			String query = CONTACTS_ID + " = " + contactID;
-			cursor = getReadableDatabase(
-					passwordInstance.getPasswordString()).query(CONTACTS_TABLE,
+			cursor = getDatabase().query(CONTACTS_TABLE,
 							CONTACT_CURSOR_COLUMNS,
 							query,null, null, null, sortOrder);
 			if( cursor.getCount() < 1) {
@@ -325,7 +933,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 				return null;
 			} else {
 				cursor.moveToFirst();
-				return (SealablePublicKey) Helpers.deserialize(cursor.getBlob(cursor.getColumnIndex(PUBLIC_KEY)));
+				return SealablePublicKey.fromBytes(cursor.getBlob(cursor.getColumnIndex(PUBLIC_KEY)));
 			}
 		} finally {
 			cursor.close();
@@ -335,55 +943,229 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	/**
 	 * Add the new token you received from a user to their SealablePublicKey.
 	 * Also, to enable blacklisting and prevent social graph analysis, 
-	 * generate a new token to provide to that individual next time you send a message.
+	 * store the new token to provide to that individual next time you send a message.
+	 * @param writer The writer the update will be queued on
 	 * @param contactID The contact in question
 	 * @param newToken The token received
+	 * @param outgoingToken The token to hand out next, or null
+	 * @return the write that stores both, or null if there is nothing to store
 	 */
-	private void updateToken(long contactID, SignedObject newToken ) {
+	private DatabaseWriter.Write updateToken(DatabaseWriter writer,
+			long contactID,
+			SignedObject newToken, SignedObject outgoingToken) {
 		SealablePublicKey currentContact = getContactSPK(contactID);
+		if (currentContact == null || outgoingToken == null) {
+			return null;
+		}
 		SealablePublicKey updatedContact = new SealablePublicKey(currentContact, newToken);
-		ContentValues updateContactToken = new ContentValues();
-		updateContactToken.put(PUBLIC_KEY, Helpers.serialize(updatedContact));
-		SignedObject outgoingToken = null;
+		contacts.updateKey(contactID, updatedContact);
+		return writer.prepared(StatementCache.Statement.UPDATE_CONTACT_KEY,
+				updatedContact.toBytes(), Helpers.serialize(outgoingToken),
+				contactID);
+	}
+
+	/**
+	 * Sign a fresh random token with our token key.
+	 * 
+	 * @return the token, or null if signing failed
+	 */
+	SignedObject newOutgoingToken() {
 		try {
-			outgoingToken = new SignedObject(
-					UUID.randomUUID(),
-					getKeyPairsProvider().getTokenKey().getPrivate(), 
-					Signature.getInstance("DSA", "SC"));
+			PrivateKey tokenKey = getKeyPairsProvider().getTokenKey()
+					.getPrivate();
+			SignaturePool pool = signatures;
+			return new SignedObject(UUID.randomUUID(), tokenKey,
+					pool == null ? Signature.getInstance("DSA", "SC")
+							: pool.newSignature(tokenKey));
 		} catch (GeneralSecurityException e) {
 			Log.wtf("touch-to-text", "Problem creating new token!",e);
 		} catch (IOException e) {
 			Log.wtf("touch-to-text", "Problem creating new token!");
 		}
-		if ( outgoingToken != null ) {
-			updateContactToken.put(CONTACT_TOKEN, Helpers.serialize(outgoingToken));
-			getReadableDatabase(passwordInstance.getPasswordString()).update(
-					CONTACTS_TABLE, updateContactToken,
-					CONTACTS_ID + "=" + contactID, null);
+		return null;
+	}
+
+	/**
+	 * Contacts with their conversation summary (last message time, preview,
+	 * unread count and direction), most recent conversation first.
+	 */
+	public Cursor getContactsCursor() {
+		return readRaw(CONVERSATION_LIST_QUERY, null);
+	}
+
+	/**
+	 * Search the plaintext of every verified message. Accepts FTS query
+	 * syntax, e.g. several words, "a phrase" or prefix*.
+	 * 
+	 * @return up to limit hits, best match first
+	 */
+	public List<SearchHit> searchMessages(String query, int limit) {
+		long time = System.nanoTime();
+		List<SearchHit> hits = searchHits(
+				readRaw(SEARCH_QUERY, new String[] { query }), limit);
+		Log.d("touch-to-text", "Search found " + hits.size() + " hits in "
+				+ (System.nanoTime() - time) / 1000000 + " ms.");
+		return hits;
+	}
+
+	/**
+	 * The best limit hits of a {@link #SEARCH_QUERY} cursor, which is
+	 * closed.
+	 */
+	static List<SearchHit> searchHits(Cursor c, int limit) {
+		List<SearchHit> hits = new ArrayList<SearchHit>();
+		try {
+			for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+				hits.add(new SearchHit(c.getLong(0), c.getLong(1), c
+						.getString(2), c.getLong(3), c.getString(4),
+						rank(c.getBlob(5))));
+			}
+		} finally {
+			c.close();
+		}
+		Collections.sort(hits);
+		if (hits.size() > limit) {
+			hits = new ArrayList<SearchHit>(hits.subList(0, limit));
 		}
+		return hits;
+	}
+
+	/**
+	 * TF-IDF style score from an FTS matchinfo 'pcnx' blob: for each phrase
+	 * and column, the hits in this row weighted by how rare the phrase is.
+	 */
+	static double rank(byte[] matchinfo) {
+		IntBuffer info = ByteBuffer.wrap(matchinfo)
+				.order(ByteOrder.nativeOrder()).asIntBuffer();
+		int phrases = info.get(0);
+		int columns = info.get(1);
+		int rows = info.get(2);
+		double score = 0;
+		for (int p = 0; p < phrases; p++) {
+			for (int col = 0; col < columns; col++) {
+				int x = 3 + 3 * (p * columns + col);
+				int hitsHere = info.get(x);
+				int rowsWithHits = info.get(x + 2);
+				if (hitsHere > 0) {
+					score += hitsHere
+							* Math.log(1.0 + (double) rows / Math.max(1, rowsWithHits));
+				}
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Messages stored before plaintext was kept, after lastID in _id order.
+	 */
+	Cursor getUncheckedMessages(long lastID, int limit) {
+		return read(MESSAGES_TABLE, new String[] { MESSAGES_ID, MESSAGE_BODY,
+				DIRECTION, CONVERSATION_ID }, VERIFICATION + " = "
+				+ VERIFICATION_UNCHECKED + " AND " + MESSAGES_ID + " > ?",
+				new String[] { String.valueOf(lastID) }, MESSAGES_ID + " ASC",
+				String.valueOf(limit));
 	}
 
 	/**
-	 * Update last contacted for a given contactID.
+	 * Every message with fromID <= _id <= toID after lastID, whatever its
+	 * status, with the columns of {@link #getUncheckedMessages}.
+	 */
+	Cursor getMessageRange(long fromID, long toID, long lastID, int limit) {
+		return read(MESSAGES_TABLE, new String[] { MESSAGES_ID, MESSAGE_BODY,
+				DIRECTION, CONVERSATION_ID }, MESSAGES_ID + " >= ? AND "
+				+ MESSAGES_ID + " <= ? AND " + MESSAGES_ID + " > ?",
+				new String[] { String.valueOf(fromID), String.valueOf(toID),
+						String.valueOf(lastID) }, MESSAGES_ID + " ASC",
+				String.valueOf(limit));
+	}
+
+	/**
+	 * Verify every message with fromID <= _id <= toID again, on every core,
+	 * and store the result. Meant for imported histories. Blocks, so call
+	 * it off the UI thread.
 	 * 
-	 * @author dannyiland
-	 * @param contactID
-	 * @param dateTime
+	 * @return how many messages verified, out of how many, and how fast
 	 */
-	private class UpdateLastContactedTask extends AsyncTask<Long, Void, Void> {
-		@Override
-		protected Void doInBackground(Long... toAdd) {
-			updateLastContacted(toAdd[0], toAdd[1]);
-			return null;
+	public String verifyHistory(long fromID, long toID) {
+		return verifyRange(fromID, toID, HistoryVerifier.THREADS, true);
+	}
+
+	/**
+	 * Verify the messages with fromID <= _id <= toID with one thread, then
+	 * two, and so on up to the number of cores, without storing anything.
+	 * Blocks, so call it off the UI thread.
+	 * 
+	 * @return messages verified per second for each thread count
+	 */
+	public String benchmarkHistoryVerification(long fromID, long toID) {
+		StringBuilder report = new StringBuilder();
+		for (int threads = 1; threads <= HistoryVerifier.THREADS; threads++) {
+			report.append(verifyRange(fromID, toID, threads, false)).append(
+					'\n');
 		}
+		Log.i("touch-to-text", "History verification by thread count:\n"
+				+ report);
+		return report.toString();
 	}
 
-	public Cursor getContactsCursor() {
-		String sortOrder = DATE_TIME + " DESC";
-		Cursor cursor = getReadableDatabase(
-				passwordInstance.getPasswordString()).query(CONTACTS_TABLE,
-						CONTACT_CURSOR_COLUMNS, null, null, null, null, sortOrder);
-		return cursor;
+	private String verifyRange(long fromID, long toID, int threads,
+			boolean write) {
+		HistoryVerifier verifier = new HistoryVerifier(this, threads);
+		long time = System.nanoTime();
+		long lastID = fromID - 1;
+		int total = 0;
+		int verified = 0;
+		try {
+			while (true) {
+				List<HistoryVerifier.Row> rows = HistoryVerifier
+						.read(getMessageRange(fromID, toID, lastID,
+								HISTORY_BATCH_SIZE));
+				if (rows.isEmpty()) {
+					break;
+				}
+				verified += verifier.verify(rows, write);
+				total += rows.size();
+				lastID = rows.get(rows.size() - 1).id;
+			}
+		} finally {
+			verifier.shutdown();
+		}
+		double seconds = (System.nanoTime() - time) / 1e9;
+		return String.format("%d threads: %d of %d verified in %.2f s, %.1f"
+				+ " messages/s", threads, verified, total, seconds,
+				seconds == 0 ? 0.0 : total / seconds);
+	}
+
+	/**
+	 * Mark every message in a conversation as read. The summary's unread
+	 * count follows in the same transaction. Observers of the conversation's
+	 * read state are told only if something was unread.
+	 */
+	public void markConversationRead(final long contactID) {
+		final ContentValues read = new ContentValues();
+		read.put(READ, MESSAGE_READ);
+		DatabaseWriter w = writer;
+		if (w == null) {
+			return;
+		}
+		w.enqueue(new DatabaseWriter.Write() {
+			private int changed = 0;
+
+			@Override
+			void apply(SQLiteDatabase db) {
+				changed = db.update(MESSAGES_TABLE, read, CONVERSATION_ID
+						+ " = ? AND " + READ + " = " + MESSAGE_UNREAD,
+						new String[] { String.valueOf(contactID) });
+			}
+
+			@Override
+			void committed(boolean success) {
+				if (success && changed > 0) {
+					context.getContentResolver().notifyChange(
+							MessagesProvider.readStateUri(contactID), null);
+				}
+			}
+		});
 	}
 
 	/**
@@ -392,12 +1174,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	 * @return
 	 */
 	public long getContactFromPublicKeySignature(String keySignature) {
+		Long known = contacts.idForFingerprint(keySignature);
+		if (known != null) {
+			return known;
+		}
 		Cursor cursor = null;
 		try {
 			String sortOrder = DATE_TIME + " DESC";
 			String query = PUBLIC_KEY_FINGERPRINT + " = ?";
-			cursor = getReadableDatabase(
-					passwordInstance.getPasswordString()).query(CONTACTS_TABLE,
+			cursor = getDatabase().query(CONTACTS_TABLE,
 							CONTACT_CURSOR_COLUMNS,
 							query, new String[] { keySignature }, null, null, sortOrder);
 			if( cursor.getCount() < 1) {
@@ -412,57 +1197,74 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 		}
 	}
 
-	private class AddMessageToDBTask extends
-	AsyncTask<ContentValues, Void, Void> {
-		@Override
-		protected Void doInBackground(ContentValues... toAdd) {
-			for (ContentValues val : toAdd) {
-				getReadableDatabase(passwordInstance.getPasswordString())
-				.insert(MESSAGES_TABLE, null, val);
-			}
-			return null;
-		}
+	/**
+	 * The newest page of a conversation, oldest message first.
+	 */
+	public Cursor getMessagesCursor(long id) {
+		return getMessagesPage(id, Long.MAX_VALUE, Long.MAX_VALUE,
+				MESSAGES_PAGE_SIZE);
 	}
 
-	private class AddContactsToDBTask extends AsyncTask<Contact, Void, Void> {
-		@Override
-		protected Void doInBackground(Contact... toAdd) {
-			for (Contact newContact : toAdd) {
-				ContentValues newUser = new ContentValues();
-				newUser.put(NICKNAME, newContact.toString());
-				newUser.put(PUBLIC_KEY,
-						Helpers.serialize(newContact.getSealablePublicKey()));
-				newUser.put(DATE_TIME, System.currentTimeMillis());
-				newUser.put(PUBLIC_KEY_FINGERPRINT, newContact
-						.getSealablePublicKey().signingKeyFingerprint());
-				newUser.put(CONTACT_TOKEN, Helpers.serialize(newContact.getToken()));
-				getReadableDatabase(passwordInstance.getPasswordString())
-				.insert(CONTACTS_TABLE, null, newUser);
-			}
-			return null;
-		}
+	/**
+	 * Up to limit messages of a conversation that sort strictly before
+	 * (beforeDateTime, beforeId), returned oldest message first so that the
+	 * page can be placed above what is already shown. Pass Long.MAX_VALUE
+	 * for both keys to get the newest page.
+	 * 
+	 * Uses the (conversation_id, dateTime, _id) index, so the cost of a page
+	 * does not depend on how long the conversation is.
+	 */
+	public Cursor getMessagesPage(long id, long beforeDateTime, long beforeId,
+			int limit) {
+		String before = String.valueOf(beforeDateTime);
+		return readRaw(pageQuery(limit), new String[] { String.valueOf(id),
+				before, before, String.valueOf(beforeId) });
 	}
 
-	public Cursor getMessagesCursor(long id) {
-		Cursor cursor = null;
-		String sortOrder = DATE_TIME + " ASC";
-		String condition = RECIPIENT_ID + "=" + id + " OR " + SENDER_ID + "="
-				+ id;
-		cursor = getReadableDatabase(passwordInstance.getPasswordString())
-				.query(MESSAGES_TABLE, MESSAGES_CURSOR_COLUMNS, condition,
-						null, null, null, sortOrder);
-
-		return cursor;
+	/**
+	 * The query behind {@link #getMessagesPage}. Its arguments are the
+	 * conversation, then beforeDateTime twice and beforeId.
+	 */
+	static String pageQuery(int limit) {
+		String columns = TextUtils.join(", ", MESSAGES_CURSOR_COLUMNS);
+		String newestFirst = "SELECT " + columns + " FROM " + MESSAGES_TABLE
+				+ " WHERE " + CONVERSATION_ID + " = ? AND (" + DATE_TIME
+				+ " < ? OR (" + DATE_TIME + " = ? AND " + MESSAGES_ID
+				+ " < ?))" + " ORDER BY " + DATE_TIME + " DESC, "
+				+ MESSAGES_ID + " DESC LIMIT " + limit;
+		return "SELECT * FROM (" + newestFirst + ") ORDER BY " + DATE_TIME
+				+ " ASC, " + MESSAGES_ID + " ASC";
+	}
 
+	/**
+	 * Messages of a conversation stored after lastSeenID, in the order they
+	 * were stored. For appending what arrived since a conversation was
+	 * loaded.
+	 * 
+	 * The unary + keeps SQLite off the conversation index, so it walks the
+	 * primary key from lastSeenID instead: the cost is the number of
+	 * messages stored since, not the length of the conversation.
+	 */
+	public Cursor getMessagesSince(long id, long lastSeenID) {
+		return read(MESSAGES_TABLE, MESSAGES_CURSOR_COLUMNS, MESSAGES_ID
+				+ " > ? AND +" + CONVERSATION_ID + " = ?", new String[] {
+				String.valueOf(lastSeenID), String.valueOf(id) }, MESSAGES_ID
+				+ " ASC", null);
 	}
 
 	public Cursor getContactCursor() {
 		String sortOrder = DATE_TIME + " DESC";
-		Cursor cursor = getReadableDatabase(
-				passwordInstance.getPasswordString()).query(CONTACTS_TABLE,
-						new String[] { CONTACTS_ID, PUBLIC_KEY, DATE_TIME, NICKNAME },
-						null, null, null, null, sortOrder);
-		return cursor;
+		return read(CONTACTS_TABLE, new String[] { CONTACTS_ID, PUBLIC_KEY,
+				DATE_TIME, NICKNAME }, null, null, sortOrder, null);
+	}
+
+	/**
+	 * The same columns as {@link #getContactCursor()}, for one contact.
+	 */
+	public Cursor getContactCursor(long contactID) {
+		return read(CONTACTS_TABLE, new String[] { CONTACTS_ID, PUBLIC_KEY,
+				DATE_TIME, NICKNAME }, CONTACTS_ID + " = ?",
+				new String[] { String.valueOf(contactID) }, null, null);
 	}
 
 	private class GenerateKeysTask extends AsyncTask<String, Void, Void> {
@@ -486,7 +1288,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			try {
 				kp = new KeyPairsProvider();
 				encryptedPublicKey.put(PUBLIC_KEY, Base64.encodeToString(
-						Helpers.serialize(kp), Base64.DEFAULT));
+						BinaryCodec.encode(kp), Base64.DEFAULT));
+				cachedKeys = kp;
+				watchTokenKey(kp);
 				GCMRegistrar.register(context, context.getResources()
 						.getString(R.string.GCM_Sender_ID));
 			} finally {
@@ -501,24 +1305,17 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 		}
 	}
 
+	/**
+	 * The token to hand a contact with the next message, remembered as the
+	 * last one given to it. Comes from the token pool, so it is normally
+	 * ready without signing.
+	 */
 	public SignedObject getOutgoingToken(long id) {
-		ContentValues updateContactToken = new ContentValues();
-		SignedObject outgoingToken = null;
-		try {
-			outgoingToken = new SignedObject(
-					UUID.randomUUID(),
-					getKeyPairsProvider().getTokenKey().getPrivate(), 
-					Signature.getInstance("DSA", "SC"));
-		} catch (GeneralSecurityException e) {
-			Log.wtf("touch-to-text", "Problem creating new token!",e);
-		} catch (IOException e) {
-			Log.wtf("touch-to-text", "Problem creating new token!");
-		}
-		if ( outgoingToken != null ) {
-			updateContactToken.put(CONTACT_TOKEN, Helpers.serialize(outgoingToken));
-			getReadableDatabase(passwordInstance.getPasswordString()).update(
-					CONTACTS_TABLE, updateContactToken,
-					CONTACTS_ID + "=" + id, null);
+		SignedObject outgoingToken = tokens.take(id);
+		DatabaseWriter w = writer;
+		if ( outgoingToken != null && w != null ) {
+			w.execute(StatementCache.Statement.UPDATE_OUTGOING_TOKEN,
+					Helpers.serialize(outgoingToken), id);
 		}
 		return outgoingToken;
 	}
@@ -0,0 +1,540 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import android.content.ContentValues;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * The only thread that writes to the encrypted database. Callers queue
+ * writes and return immediately; the writer drains everything that is
+ * pending into one transaction, so a burst of messages costs one journal
+ * flush instead of one per statement. Repeated last-contacted updates for
+ * the same contact within a drain are merged into one.
+ *
+ * If that shared transaction fails, each queued write, or batch of writes,
+ * is retried in a transaction of its own, so one bad write only loses
+ * itself.
+ *
+ * Background producers get a bounded share of the queue, so one that
+ * outruns the disk blocks instead of growing the heap. The UI thread never
+ * waits for room, so its writes are not bounded; they come one per user
+ * action and can't outrun the disk.
+ *
+ * Once {@link #shutdown()} has run, new writes are refused at once: each
+ * is told it was not committed, and nothing waits on the stopped thread.
+ */
+class DatabaseWriter implements Runnable {
+
+	private static final String TAG = "touch-to-text";
+	private static final int QUEUE_CAPACITY = 256;
+
+	/**
+	 * One unit of work, applied inside the drain's transaction.
+	 */
+	abstract static class Write {
+		// Set if queueing this write took one of the background permits
+		private boolean permit;
+
+		abstract void apply(SQLiteDatabase db);
+
+		/**
+		 * Called on the writer thread once the transaction holding this write
+		 * has ended, or on the queueing thread if the writer had already
+		 * stopped.
+		 * 
+		 * @param success false if the transaction was rolled back
+		 */
+		void committed(boolean success) {
+		}
+
+		/**
+		 * @return true if this write adds a row, for the throughput counter
+		 */
+		boolean isInsert() {
+			return false;
+		}
+	}
+
+	private static final class Insert extends Write {
+		private final String table;
+		private final ContentValues values;
+
+		Insert(String table, ContentValues values) {
+			this.table = table;
+			this.values = values;
+		}
+
+		@Override
+		void apply(SQLiteDatabase db) {
+			db.insert(table, null, values);
+		}
+
+		@Override
+		boolean isInsert() {
+			return true;
+		}
+	}
+
+	private static final class Update extends Write {
+		private final String table;
+		private final ContentValues values;
+		private final String where;
+		private final String[] whereArgs;
+
+		Update(String table, ContentValues values, String where,
+				String[] whereArgs) {
+			this.table = table;
+			this.values = values;
+			this.where = where;
+			this.whereArgs = whereArgs;
+		}
+
+		@Override
+		void apply(SQLiteDatabase db) {
+			db.update(table, values, where, whereArgs);
+		}
+	}
+
+	/**
+	 * One of the hot statements, run through the compiled statement cache.
+	 */
+	private final class Prepared extends Write {
+		private final StatementCache.Statement statement;
+		private final Object[] args;
+
+		Prepared(StatementCache.Statement statement, Object[] args) {
+			this.statement = statement;
+			this.args = args;
+		}
+
+		@Override
+		void apply(SQLiteDatabase db) {
+			statements.execute(db, statement, args);
+		}
+
+		@Override
+		boolean isInsert() {
+			return statement == StatementCache.Statement.INSERT_MESSAGE;
+		}
+	}
+
+	/**
+	 * Merged by the drain loop rather than applied one by one.
+	 */
+	private final class LastContacted extends Write {
+		private final long contactID;
+		private final long dateTime;
+
+		LastContacted(long contactID, long dateTime) {
+			this.contactID = contactID;
+			this.dateTime = dateTime;
+		}
+
+		@Override
+		void apply(SQLiteDatabase db) {
+			statements.execute(db,
+					StatementCache.Statement.UPDATE_LAST_CONTACTED, dateTime,
+					contactID);
+		}
+	}
+
+	/**
+	 * Writes that must share a transaction; the drain loop unpacks them.
+	 */
+	private static final class Batch extends Write {
+		private final List<Write> writes;
+
+		Batch(List<Write> writes) {
+			this.writes = writes;
+		}
+
+		@Override
+		void apply(SQLiteDatabase db) {
+		}
+	}
+
+	/**
+	 * Told, on the writer thread, whether the writes queued before it were
+	 * committed.
+	 */
+	interface Outcome {
+		/**
+		 * @param committed false if any write drained before this one was
+		 *            lost
+		 */
+		void done(boolean committed);
+	}
+
+	private static final class Callback extends Write {
+		private final Outcome outcome;
+
+		Callback(Outcome outcome) {
+			this.outcome = outcome;
+		}
+
+		@Override
+		void apply(SQLiteDatabase db) {
+		}
+	}
+
+	private static final Write SHUTDOWN = new Write() {
+		@Override
+		void apply(SQLiteDatabase db) {
+		}
+	};
+
+	private final DatabaseHelper helper;
+	private final BlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+	// Room in the queue for writes from background threads
+	private final Semaphore permits = new Semaphore(QUEUE_CAPACITY);
+	private final Thread thread;
+	// Set, under the queue's lock, once SHUTDOWN is queued
+	private boolean stopped = false;
+	// Compiled on first use against the session's handle
+	private final StatementCache statements = new StatementCache();
+
+	// Throughput counters
+	private final AtomicLong rowsInserted = new AtomicLong();
+	private final AtomicLong writesApplied = new AtomicLong();
+	private final AtomicLong transactions = new AtomicLong();
+	private final AtomicLong lastContactedMerged = new AtomicLong();
+	private final AtomicLong writesLost = new AtomicLong();
+	private final AtomicLong nanosInTransactions = new AtomicLong();
+
+	DatabaseWriter(DatabaseHelper helper) {
+		this.helper = helper;
+		thread = new Thread(this, "DatabaseWriter");
+		thread.setPriority(Thread.NORM_PRIORITY - 1);
+		thread.start();
+	}
+
+	void insert(String table, ContentValues values) {
+		enqueue(new Insert(table, values));
+	}
+
+	void update(String table, ContentValues values, String where,
+			String[] whereArgs) {
+		enqueue(new Update(table, values, where, whereArgs));
+	}
+
+	/**
+	 * Queue one of the compiled hot statements with its bound arguments.
+	 */
+	void execute(StatementCache.Statement statement, Object... args) {
+		enqueue(new Prepared(statement, args));
+	}
+
+	void updateLastContacted(long contactID, long dateTime) {
+		enqueue(new LastContacted(contactID, dateTime));
+	}
+
+	/**
+	 * A compiled hot statement, to be queued as part of a batch.
+	 */
+	Write prepared(StatementCache.Statement statement, Object... args) {
+		return new Prepared(statement, args);
+	}
+
+	/**
+	 * An update, to be queued as part of a batch.
+	 */
+	Write updated(String table, ContentValues values, String where,
+			String[] whereArgs) {
+		return new Update(table, values, where, whereArgs);
+	}
+
+	/**
+	 * A last-contacted update, to be queued as part of a batch. It is still
+	 * merged with the others in its drain.
+	 */
+	Write lastContacted(long contactID, long dateTime) {
+		return new LastContacted(contactID, dateTime);
+	}
+
+	/**
+	 * Queue several writes that are committed in the same transaction, in
+	 * order.
+	 */
+	void enqueueBatch(List<Write> writes) {
+		enqueue(new Batch(writes));
+	}
+
+	/**
+	 * Queue a write. Blocks a background thread while its share of the
+	 * queue is full; never blocks the UI thread. After {@link #shutdown()},
+	 * the write is refused and told so on the caller's thread.
+	 */
+	void enqueue(Write w) {
+		if (Looper.getMainLooper().getThread() != Thread.currentThread()) {
+			try {
+				permits.acquire();
+				w.permit = true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				Log.w(TAG, "Interrupted while queueing a database write", e);
+				refuse(w);
+				return;
+			}
+		}
+		synchronized (queue) {
+			if (!stopped) {
+				queue.add(w);
+				return;
+			}
+		}
+		Log.w(TAG, "Database writer stopped, refusing a write");
+		refuse(w);
+	}
+
+	private void refuse(Write w) {
+		if (w.permit) {
+			w.permit = false;
+			permits.release();
+		}
+		if (w instanceof Callback) {
+			((Callback) w).outcome.done(false);
+			return;
+		}
+		writesLost.incrementAndGet();
+		for (Write single : unpack(w)) {
+			single.committed(false);
+		}
+	}
+
+	/**
+	 * Run r on the writer thread after every write queued before it has been
+	 * handled, whether or not it was committed. Runs r at once if the writer
+	 * has stopped.
+	 */
+	void runAfterPendingWrites(final Runnable r) {
+		afterPendingWrites(new Outcome() {
+			@Override
+			public void done(boolean committed) {
+				r.run();
+			}
+		});
+	}
+
+	/**
+	 * Tell outcome, on the writer thread, whether every write queued before
+	 * it was committed. Once the writer has stopped, outcome is told false
+	 * right away on the caller's thread.
+	 */
+	void afterPendingWrites(Outcome outcome) {
+		enqueue(new Callback(outcome));
+	}
+
+	/**
+	 * Block until every write queued before this call has been handled.
+	 * Must not be called from the writer thread.
+	 * 
+	 * @return true if all of them were committed, false at once if the
+	 *         writer has stopped
+	 */
+	boolean flush() {
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicBoolean result = new AtomicBoolean();
+		afterPendingWrites(new Outcome() {
+			@Override
+			public void done(boolean committed) {
+				result.set(committed);
+				done.countDown();
+			}
+		});
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return result.get();
+	}
+
+	/**
+	 * Commit everything queued so far, then stop the thread.
+	 */
+	void shutdown() {
+		synchronized (queue) {
+			if (!stopped) {
+				stopped = true;
+				// Without a permit, so the shared marker is never flagged
+				queue.add(SHUTDOWN);
+			}
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		List<Write> batch = new ArrayList<Write>();
+		Map<Long, LastContacted> lastContacted = new HashMap<Long, LastContacted>();
+		boolean running = true;
+		while (running) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch);
+			for (Write w : batch) {
+				if (w.permit) {
+					permits.release();
+				}
+			}
+			running = !batch.remove(SHUTDOWN);
+			drain(batch, lastContacted);
+			batch.clear();
+		}
+		Log.i(TAG, "Database writer stopped. " + statistics());
+		statements.close();
+	}
+
+	/**
+	 * Commit the drained writes in one transaction. If that fails, retry
+	 * each queued write or batch in a transaction of its own, and report
+	 * only the ones that failed again as lost.
+	 */
+	private void drain(List<Write> batch, Map<Long, LastContacted> lastContacted) {
+		long start = System.nanoTime();
+		boolean[] committed = new boolean[batch.size()];
+		int inserts = 0;
+		try {
+			inserts = commit(batch, lastContacted);
+			Arrays.fill(committed, true);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Failed to commit " + batch.size()
+					+ " writes together, retrying one at a time", e);
+			for (int i = 0; i < batch.size(); i++) {
+				Write w = batch.get(i);
+				if (w instanceof Callback) {
+					continue;
+				}
+				try {
+					inserts += commit(Collections.singletonList(w),
+							lastContacted);
+					committed[i] = true;
+				} catch (RuntimeException e1) {
+					writesLost.incrementAndGet();
+					Log.e(TAG, "Lost a write that failed on its own", e1);
+				}
+			}
+		}
+		nanosInTransactions.addAndGet(System.nanoTime() - start);
+		rowsInserted.addAndGet(inserts);
+		transactions.incrementAndGet();
+		boolean allCommitted = true;
+		for (int i = 0; i < batch.size(); i++) {
+			Write w = batch.get(i);
+			if (w instanceof Callback) {
+				((Callback) w).outcome.done(allCommitted);
+			} else {
+				allCommitted &= committed[i];
+				for (Write single : unpack(w)) {
+					writesApplied.incrementAndGet();
+					single.committed(committed[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply writes in one transaction, merging last-contacted updates.
+	 * 
+	 * @return rows inserted
+	 * @throws RuntimeException if the transaction was rolled back
+	 */
+	private int commit(List<Write> writes, Map<Long, LastContacted> lastContacted) {
+		lastContacted.clear();
+		int inserts = 0;
+		SQLiteDatabase db = helper.getDatabase();
+		db.beginTransaction();
+		try {
+			for (Write queued : writes) {
+				for (Write w : unpack(queued)) {
+					if (w instanceof LastContacted) {
+						LastContacted lc = (LastContacted) w;
+						LastContacted previous = lastContacted.put(lc.contactID, lc);
+						if (previous != null) {
+							lastContactedMerged.incrementAndGet();
+							if (previous.dateTime > lc.dateTime) {
+								lastContacted.put(lc.contactID, previous);
+							}
+						}
+						continue;
+					}
+					w.apply(db);
+					if (w.isInsert()) {
+						inserts++;
+					}
+				}
+			}
+			for (LastContacted lc : lastContacted.values()) {
+				lc.apply(db);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return inserts;
+	}
+
+	private static List<Write> unpack(Write w) {
+		return w instanceof Batch ? ((Batch) w).writes : Collections
+				.singletonList(w);
+	}
+
+	/**
+	 * @return rows inserted per second of time spent inside write
+	 * transactions.
+	 */
+	double getInsertsPerSecond() {
+		long nanos = nanosInTransactions.get();
+		return nanos == 0 ? 0 : rowsInserted.get() * 1e9 / nanos;
+	}
+
+	long getTransactionCount() {
+		return transactions.get();
+	}
+
+	long getWriteCount() {
+		return writesApplied.get();
+	}
+
+	long getMergedLastContactedCount() {
+		return lastContactedMerged.get();
+	}
+
+	String statistics() {
+		return writesApplied.get() + " writes (" + rowsInserted.get()
+				+ " inserts) in " + transactions.get() + " transactions, "
+				+ lastContactedMerged.get() + " last-contacted updates merged, "
+				+ writesLost.get() + " lost, "
+				+ (int) getInsertsPerSecond() + " inserts/s; "
+				+ statements.statistics();
+	}
+
+	/**
+	 * @return executions and mean time of each compiled statement
+	 */
+	String statementStatistics() {
+		return statements.statistics();
+	}
+}
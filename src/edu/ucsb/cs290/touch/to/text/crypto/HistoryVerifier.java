@@ -0,0 +1,195 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Log;
+import edu.ucsb.cs290.touch.to.text.remote.Helpers;
+import edu.ucsb.cs290.touch.to.text.remote.messages.SignedMessage;
+
+/**
+ * Verifies stored messages on several threads at once, for imported
+ * histories and for migrating rows stored before plaintext was kept. Each
+ * batch is read on the calling thread, split into slices that the pool
+ * verifies independently, and its results are written back in one
+ * transaction. Decoded public keys are shared by every slice.
+ *
+ * Verification only writes a message's plaintext and status, so a batch
+ * that is cut short is simply verified again next time.
+ */
+class HistoryVerifier {
+
+	private static final String TAG = "touch-to-text";
+
+	static final int THREADS = Runtime.getRuntime().availableProcessors();
+	// Slices per thread in a batch, so that a slow slice doesn't hold the
+	// others up
+	private static final int SLICES_PER_THREAD = 4;
+
+	/**
+	 * The columns of one message that verification needs.
+	 */
+	static final class Row {
+		final long id;
+		final byte[] body;
+		final boolean outgoing;
+		final long contactID;
+
+		Row(Cursor c) {
+			id = c.getLong(c.getColumnIndex(DatabaseHelper.MESSAGES_ID));
+			body = c.getBlob(c.getColumnIndex(DatabaseHelper.MESSAGE_BODY));
+			outgoing = c.getInt(c.getColumnIndex(DatabaseHelper.DIRECTION)) == DatabaseHelper.DIRECTION_OUTGOING;
+			contactID = c.getLong(c
+					.getColumnIndex(DatabaseHelper.CONVERSATION_ID));
+		}
+	}
+
+	private final DatabaseHelper helper;
+	private final int threads;
+	private final ExecutorService pool;
+	// Guards keys; a contact without a key maps to null
+	private final Map<Long, PublicKey> keys = new HashMap<Long, PublicKey>();
+	private PublicKey self;
+
+	HistoryVerifier(DatabaseHelper helper, int threads) {
+		this.helper = helper;
+		this.threads = Math.max(1, threads);
+		pool = Executors.newFixedThreadPool(this.threads);
+	}
+
+	/**
+	 * Read a cursor with the columns of
+	 * {@link DatabaseHelper#getUncheckedMessages} and close it.
+	 */
+	static List<Row> read(Cursor c) {
+		try {
+			List<Row> rows = new ArrayList<Row>(c.getCount());
+			while (c.moveToNext()) {
+				rows.add(new Row(c));
+			}
+			return rows;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Verify a batch in parallel. Blocks until every slice is done.
+	 *
+	 * @param write whether to store each row's plaintext and status, in
+	 *            one transaction
+	 * @return how many rows verified
+	 */
+	int verify(List<Row> rows, boolean write) {
+		int sliceSize = Math.max(1, (rows.size() + threads * SLICES_PER_THREAD
+				- 1) / (threads * SLICES_PER_THREAD));
+		List<Future<List<ContentValues>>> slices = new ArrayList<Future<List<ContentValues>>>();
+		for (int from = 0; from < rows.size(); from += sliceSize) {
+			final List<Row> slice = rows.subList(from,
+					Math.min(rows.size(), from + sliceSize));
+			slices.add(pool.submit(new Callable<List<ContentValues>>() {
+				@Override
+				public List<ContentValues> call() {
+					List<ContentValues> results = new ArrayList<ContentValues>(
+							slice.size());
+					for (Row row : slice) {
+						results.add(check(row));
+					}
+					return results;
+				}
+			}));
+		}
+		int verified = 0;
+		List<DatabaseWriter.Write> writes = new ArrayList<DatabaseWriter.Write>(
+				rows.size());
+		// Results are only counted once the database is locked
+		DatabaseWriter writer = write ? helper.getWriter() : null;
+		int i = 0;
+		for (Future<List<ContentValues>> f : slices) {
+			for (ContentValues values : result(f)) {
+				if (values.getAsInteger(DatabaseHelper.VERIFICATION) == DatabaseHelper.VERIFICATION_OK) {
+					verified++;
+				}
+				if (writer != null) {
+					writes.add(writer.updated(DatabaseHelper.MESSAGES_TABLE,
+							values, DatabaseHelper.MESSAGES_ID + " = ?",
+							new String[] { String.valueOf(rows.get(i).id) }));
+				}
+				i++;
+			}
+		}
+		if (writer != null && !writes.isEmpty()) {
+			writer.enqueueBatch(writes);
+		}
+		return verified;
+	}
+
+	void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * @return the row's plaintext and status, or a failed status alone
+	 */
+	private ContentValues check(Row row) {
+		ContentValues values = new ContentValues();
+		values.put(DatabaseHelper.VERIFICATION, DatabaseHelper.VERIFICATION_FAILED);
+		try {
+			PublicKey key = keyFor(row);
+			SignedMessage sm = (SignedMessage) Helpers.deserialize(row.body);
+			if (key != null && sm != null && key.equals(sm.getAuthor())) {
+				values.put(DatabaseHelper.PLAIN_BODY, sm.getMessage(key).getBody());
+				values.put(DatabaseHelper.VERIFICATION, DatabaseHelper.VERIFICATION_OK);
+			}
+		} catch (GeneralSecurityException e) {
+			Log.w(TAG, "Stored message " + row.id + " failed verification", e);
+		} catch (IOException e) {
+			Log.d(TAG, "Error deserializing signed message", e);
+		} catch (ClassNotFoundException e) {
+			Log.d(TAG, "Error deserializing signed message", e);
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Stored message " + row.id + " is unreadable", e);
+		}
+		return values;
+	}
+
+	private PublicKey keyFor(Row row) {
+		synchronized (keys) {
+			if (row.outgoing) {
+				if (self == null) {
+					self = helper.getSigningKey().getPublic();
+				}
+				return self;
+			}
+			if (!keys.containsKey(row.contactID)) {
+				SealablePublicKey spk = helper.getContactSPK(row.contactID);
+				keys.put(row.contactID, spk == null ? null : spk.sign());
+			}
+			return keys.get(row.contactID);
+		}
+	}
+
+	private static List<ContentValues> result(Future<List<ContentValues>> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while verifying", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Verification failed",
+					e.getCause());
+		}
+	}
+}
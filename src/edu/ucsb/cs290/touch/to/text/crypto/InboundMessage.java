@@ -0,0 +1,44 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.security.PublicKey;
+import java.security.SignedObject;
+
+import edu.ucsb.cs290.touch.to.text.remote.messages.Message;
+import edu.ucsb.cs290.touch.to.text.remote.messages.SignedMessage;
+
+/**
+ * A received message on its way into the database. Each step of
+ * {@link DatabaseHelper}'s receive path fills in the fields it produces, so
+ * the expensive steps can run on other threads than the one that stores the
+ * result.
+ */
+final class InboundMessage {
+
+	// Set on admission
+	final byte[] ciphertext;
+	final byte[] digest;
+
+	// Set by decrypt
+	SignedMessage signed;
+	SignedObject receivedToken;
+
+	// Set by verify
+	PublicKey author;
+	Message plain;
+
+	// Set by resolve
+	long contactID = DatabaseHelper.MY_CONTACT_ID;
+	SignedObject outgoingToken;
+
+	InboundMessage(byte[] ciphertext, byte[] digest) {
+		this.ciphertext = ciphertext;
+		this.digest = digest;
+	}
+
+	/**
+	 * @return true once the signature has been checked
+	 */
+	boolean isVerified() {
+		return plain != null;
+	}
+}
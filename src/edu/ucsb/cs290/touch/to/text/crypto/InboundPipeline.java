@@ -0,0 +1,320 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * Receives messages off the main thread, in stages:
+ *
+ * <pre>
+ * decode -> decrypt -> verify -> resolve -> persist -> notify
+ * </pre>
+ *
+ * Each stage has its own threads and a bounded number of messages in
+ * flight. A stage that is full makes the stage before it wait, so a burst
+ * backs up to the entry point instead of filling the heap; there,
+ * {@link #submit(String)} refuses the message and the caller can keep it in
+ * the {@link PendingInbox}. Decryption and verification get a thread per
+ * core, the other stages one thread each.
+ *
+ * Payloads are submitted as delivered (Base64 text), so the pipeline can be
+ * driven without GCM, and the result of each message goes to a
+ * {@link Listener}.
+ */
+public class InboundPipeline {
+
+	private static final String TAG = "touch-to-text";
+
+	// Messages each stage accepts before its producer has to wait
+	static final int STAGE_CAPACITY = 32;
+	private static final int SHUTDOWN_WAIT_SECONDS = 2;
+	private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Told about each message that was committed to the database, on the
+	 * notify thread.
+	 */
+	public interface Listener {
+		void onMessageStored(long contactID);
+	}
+
+	/**
+	 * One step of the pipeline.
+	 *
+	 * @param <I> what the step takes in; every step hands on an
+	 *        InboundMessage
+	 */
+	private abstract class Stage<I> {
+		final String name;
+		private final ThreadPoolExecutor executor;
+		private final Semaphore slots = new Semaphore(STAGE_CAPACITY);
+		private Stage<InboundMessage> next;
+
+		// Metrics
+		private final AtomicLong processed = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong nanos = new AtomicLong();
+		private final AtomicLong waits = new AtomicLong();
+
+		Stage(final String name, int threads) {
+			this.name = name;
+			executor = new ThreadPoolExecutor(threads, threads, 30,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "Inbound-" + name + "-"
+									+ count.incrementAndGet());
+							t.setPriority(Thread.NORM_PRIORITY - 1);
+							return t;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+		}
+
+		/**
+		 * @return the next stage's input, or null to stop here
+		 */
+		abstract InboundMessage process(I input) throws Exception;
+
+		/**
+		 * Hand over input, waiting for room if the stage is full.
+		 */
+		void put(I input) throws InterruptedException {
+			if (!slots.tryAcquire()) {
+				waits.incrementAndGet();
+				slots.acquire();
+			}
+			execute(input);
+		}
+
+		/**
+		 * Hand over input only if there is room.
+		 */
+		boolean offer(I input) {
+			if (!slots.tryAcquire()) {
+				return false;
+			}
+			execute(input);
+			return true;
+		}
+
+		private void execute(final I input) {
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							runStage(input);
+						} finally {
+							slots.release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Shut down; the message is dropped.
+				slots.release();
+				failed.incrementAndGet();
+				if (input instanceof InboundMessage) {
+					helper.discard((InboundMessage) input);
+				}
+			}
+		}
+
+		private void runStage(I input) {
+			InboundMessage out;
+			long start = System.nanoTime();
+			try {
+				out = process(input);
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				Log.w(TAG, "Inbound message failed in " + name, e);
+				if (input instanceof InboundMessage) {
+					helper.discard((InboundMessage) input);
+				}
+				return;
+			} finally {
+				nanos.addAndGet(System.nanoTime() - start);
+			}
+			processed.incrementAndGet();
+			if (out != null && next != null) {
+				try {
+					next.put(out);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					helper.discard(out);
+				}
+			}
+		}
+
+		int inFlight() {
+			return STAGE_CAPACITY - slots.availablePermits();
+		}
+
+		/**
+		 * Stop taking input and wait a while for what is inside to finish.
+		 */
+		void shutdown() {
+			executor.shutdown();
+			try {
+				if (!executor.awaitTermination(SHUTDOWN_WAIT_SECONDS,
+						TimeUnit.SECONDS)) {
+					Log.w(TAG, "Gave up waiting for inbound stage " + name);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public String toString() {
+			long n = processed.get() + failed.get();
+			return name + ": " + processed.get() + " ok, " + failed.get()
+					+ " failed, " + (n == 0 ? 0 : nanos.get() / n / 1000)
+					+ " us avg, " + inFlight() + " in flight, " + waits.get()
+					+ " waits";
+		}
+	}
+
+	private final DatabaseHelper helper;
+	private final Listener listener;
+
+	private final Stage<String> decode;
+	private final Stage<InboundMessage> decrypt;
+	private final Stage<InboundMessage> verify;
+	private final Stage<InboundMessage> resolve;
+	private final Stage<InboundMessage> persist;
+	private final Stage<InboundMessage> notify;
+	// Committed messages per contact not yet told to the listener
+	private final Map<Long, Integer> unannounced = new LinkedHashMap<Long, Integer>();
+
+	public InboundPipeline(DatabaseHelper helper, Listener listener) {
+		this.helper = helper;
+		this.listener = listener;
+		decode = new Stage<String>("decode", 1) {
+			@Override
+			InboundMessage process(String payload) {
+				return InboundPipeline.this.helper.admit(Base64.decode(
+						payload, Base64.DEFAULT));
+			}
+		};
+		decrypt = new Stage<InboundMessage>("decrypt", CORES) {
+			@Override
+			InboundMessage process(InboundMessage m) throws Exception {
+				InboundPipeline.this.helper.decrypt(m);
+				return m;
+			}
+		};
+		verify = new Stage<InboundMessage>("verify", CORES) {
+			@Override
+			InboundMessage process(InboundMessage m) throws Exception {
+				InboundPipeline.this.helper.verify(m);
+				return m;
+			}
+		};
+		resolve = new Stage<InboundMessage>("resolve", 1) {
+			@Override
+			InboundMessage process(InboundMessage m) {
+				InboundPipeline.this.helper.resolve(m);
+				return m;
+			}
+		};
+		persist = new Stage<InboundMessage>("persist", 1) {
+			@Override
+			InboundMessage process(final InboundMessage m) {
+				DatabaseHelper h = InboundPipeline.this.helper;
+				if (h.persist(Collections.singletonList(m)) == 0) {
+					return null;
+				}
+				h.afterPendingWrites(new DatabaseWriter.Outcome() {
+					@Override
+					public void done(boolean committed) {
+						// Runs on the writer thread, which must not wait. The
+						// message is counted against its contact first, so if
+						// notify is full, a run already queued there announces
+						// it. A message that wasn't stored is not announced.
+						if (committed) {
+							synchronized (unannounced) {
+								Integer n = unannounced.get(m.contactID);
+								unannounced.put(m.contactID, n == null ? 1
+										: n + 1);
+							}
+							notify.offer(m);
+						}
+					}
+				});
+				return null;
+			}
+		};
+		notify = new Stage<InboundMessage>("notify", 1) {
+			@Override
+			InboundMessage process(InboundMessage m) {
+				// Every message counted so far, whichever run queued it
+				Map<Long, Integer> counts;
+				synchronized (unannounced) {
+					counts = new LinkedHashMap<Long, Integer>(unannounced);
+					unannounced.clear();
+				}
+				for (Map.Entry<Long, Integer> e : counts.entrySet()) {
+					for (int i = 0; i < e.getValue(); i++) {
+						InboundPipeline.this.listener.onMessageStored(e
+								.getKey());
+					}
+				}
+				return null;
+			}
+		};
+		decode.next = decrypt;
+		decrypt.next = verify;
+		verify.next = resolve;
+		resolve.next = persist;
+	}
+
+	/**
+	 * Start receiving a message. Never blocks.
+	 *
+	 * @param payload the message as delivered, Base64 encoded
+	 * @return false if the pipeline is full and the message was not taken
+	 */
+	public boolean submit(String payload) {
+		return decode.offer(payload);
+	}
+
+	/**
+	 * Stop taking new messages and let the ones inside finish, one stage
+	 * after the other, so every stage's output still has somewhere to go.
+	 * Call before the database is locked: persisted messages are then
+	 * committed when the writer shuts down.
+	 */
+	public void shutdown() {
+		decode.shutdown();
+		decrypt.shutdown();
+		verify.shutdown();
+		resolve.shutdown();
+		persist.shutdown();
+		notify.shutdown();
+		Log.i(TAG, "Inbound pipeline stopped. " + statistics());
+	}
+
+	/**
+	 * @return per-stage counts, mean time and queue state
+	 */
+	public String statistics() {
+		return decode + "; " + decrypt + "; " + verify + "; " + resolve
+				+ "; " + persist + "; " + notify;
+	}
+}
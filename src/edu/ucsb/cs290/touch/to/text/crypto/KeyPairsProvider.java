@@ -5,6 +5,7 @@ import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.PublicKey;
 import java.security.Security;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -18,7 +19,8 @@ import android.util.Log;
 
 public class KeyPairsProvider implements Serializable {
 	/**
-	 * One ElGamal keypair, and two DSA keypairs.
+	 * One ElGamal keypair, and two DSA keypairs. Plus an ECDSA and an ECDH
+	 * keypair for {@link KeySuite#EC_P256}, null in keys saved before it.
 	 */
 	private static final long serialVersionUID = 1L;
 
@@ -28,6 +30,8 @@ public class KeyPairsProvider implements Serializable {
 	private KeyPair signingKeyPair;
 	private KeyPair transmissonKeyPair;
 	private KeyPair tokenSigningKeyPair;
+	private KeyPair ecSigningKeyPair;
+	private KeyPair ecEncryptionKeyPair;
 
 	public KeyPairsProvider() {
 		ExecutorService e = Executors.newCachedThreadPool();
@@ -35,15 +39,46 @@ public class KeyPairsProvider implements Serializable {
 		Future<KeyPair> transFut = e.submit(new Generate("ElGamal", 1024));
 		Future<KeyPair> tokenFut = e.submit(new Generate("DSA", 1024));
 		try {
+			ecSigningKeyPair = KeySuite.EC_P256.generateSigningKeyPair();
+			ecEncryptionKeyPair = KeySuite.EC_P256.generateEncryptionKeyPair();
 			signingKeyPair = signingFut.get();
 			transmissonKeyPair = transFut.get();
 			tokenSigningKeyPair = tokenFut.get();
 		} catch (Exception e1) {
 			Log.wtf("touch-to-text", "Interrupted key generation", e1);
 		}
+		e.shutdown();
 	}
 
-	private static KeyPair generate(String algorithm, int bits) {
+	/**
+	 * Wrap existing keys, e.g. ones read back from storage. The EC pairs
+	 * may be null.
+	 */
+	KeyPairsProvider(KeyPair signing, KeyPair transmission, KeyPair token,
+			KeyPair ecSigning, KeyPair ecEncryption) {
+		signingKeyPair = signing;
+		transmissonKeyPair = transmission;
+		tokenSigningKeyPair = token;
+		ecSigningKeyPair = ecSigning;
+		ecEncryptionKeyPair = ecEncryption;
+	}
+
+	/**
+	 * Generate the keys of any suite these keys predate. Milliseconds for
+	 * the EC suite.
+	 * 
+	 * @return true if keys were added and need saving
+	 */
+	boolean addMissingSuites() {
+		if (ecSigningKeyPair != null && ecEncryptionKeyPair != null) {
+			return false;
+		}
+		ecSigningKeyPair = KeySuite.EC_P256.generateSigningKeyPair();
+		ecEncryptionKeyPair = KeySuite.EC_P256.generateEncryptionKeyPair();
+		return true;
+	}
+
+	static KeyPair generate(String algorithm, int bits) {
 		Log.d("touch-to-text", "starting generation of " + algorithm);
 		long time = System.currentTimeMillis();
 		KeyPairGenerator gen = null;
@@ -89,7 +124,27 @@ public class KeyPairsProvider implements Serializable {
 
 	public SealablePublicKey getExternalKey() {
 		return new SealablePublicKey(signingKeyPair.getPublic(),
-				transmissonKeyPair.getPublic(), tokenSigningKeyPair);
+				transmissonKeyPair.getPublic(), tokenSigningKeyPair,
+				publicOf(ecSigningKeyPair), publicOf(ecEncryptionKeyPair));
+	}
+
+	private static PublicKey publicOf(KeyPair pair) {
+		return pair == null ? null : pair.getPublic();
+	}
+
+	/**
+	 * @return the signing pair of a suite, or null if there is none
+	 */
+	KeyPair getSigningKey(KeySuite suite) {
+		return suite == KeySuite.EC_P256 ? ecSigningKeyPair : signingKeyPair;
+	}
+
+	/**
+	 * @return the encryption pair of a suite, or null if there is none
+	 */
+	KeyPair getEncryptionKey(KeySuite suite) {
+		return suite == KeySuite.EC_P256 ? ecEncryptionKeyPair
+				: transmissonKeyPair;
 	}
 
 	KeyPair getSigningKey() {
@@ -0,0 +1,102 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * The algorithms behind a set of keys, numbered so that they can be stored
+ * and advertised in a {@link SealablePublicKey}.
+ *
+ * So far the {@link #EC_P256} keys are only generated, stored and
+ * exchanged, so that contacts already hold them when the message format
+ * can use them. Messages are still signed and sealed by SignedMessage and
+ * ProtectedMessage with the {@link #DSA_ELGAMAL} keys, and no suite is
+ * chosen per contact.
+ */
+public enum KeySuite {
+
+	/**
+	 * The original keys: DSA-1024 signatures and ElGamal over the 1536-bit
+	 * MODP group.
+	 */
+	DSA_ELGAMAL(1) {
+		@Override
+		KeyPair generateSigningKeyPair() {
+			return KeyPairsProvider.generate("DSA", 1024);
+		}
+
+		@Override
+		KeyPair generateEncryptionKeyPair() {
+			return KeyPairsProvider.generate("ElGamal", 1024);
+		}
+
+		@Override
+		String signatureAlgorithm() {
+			return "DSA";
+		}
+	},
+
+	/**
+	 * ECDSA with SHA-256, and ECDH keys for encryption, both over P-256.
+	 */
+	EC_P256(2) {
+		@Override
+		KeyPair generateSigningKeyPair() {
+			return generateEC("ECDSA");
+		}
+
+		@Override
+		KeyPair generateEncryptionKeyPair() {
+			return generateEC("ECDH");
+		}
+
+		@Override
+		String signatureAlgorithm() {
+			return "SHA256withECDSA";
+		}
+	};
+
+	private static final String CURVE = "prime256v1";
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	final int id;
+
+	KeySuite(int id) {
+		this.id = id;
+	}
+
+	abstract KeyPair generateSigningKeyPair();
+
+	abstract KeyPair generateEncryptionKeyPair();
+
+	/**
+	 * @return the JCA name of the signature over this suite's signing keys
+	 */
+	abstract String signatureAlgorithm();
+
+	Signature newSignature() throws GeneralSecurityException {
+		return Signature.getInstance(signatureAlgorithm(), "SC");
+	}
+
+	private static KeyPair generateEC(String algorithm) {
+		try {
+			KeyPairGenerator gen = KeyPairGenerator.getInstance(algorithm,
+					"SC");
+			gen.initialize(new ECGenParameterSpec(CURVE), RANDOM);
+			return gen.generateKeyPair();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("No " + CURVE + " support", e);
+		}
+	}
+}
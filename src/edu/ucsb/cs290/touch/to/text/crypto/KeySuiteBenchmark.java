@@ -0,0 +1,83 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.Signature;
+
+import android.util.Log;
+
+/**
+ * Times each {@link KeySuite} on this device: generating its two key
+ * pairs, then signing and verifying a message-sized payload. Meant to be run by hand, from a debug build or a test harness,
+ * off the UI thread; DSA key generation alone can take seconds.
+ */
+public final class KeySuiteBenchmark {
+
+	private static final String TAG = "touch-to-text";
+	private static final int PAYLOAD_BYTES = 512;
+
+	private KeySuiteBenchmark() {
+	}
+
+	/**
+	 * @param iterations how many times to repeat each operation after key
+	 *            generation
+	 * @return one line per suite with milliseconds per operation
+	 */
+	public static String run(int iterations) {
+		iterations = Math.max(1, iterations);
+		byte[] payload = new byte[PAYLOAD_BYTES];
+		new SecureRandom().nextBytes(payload);
+		StringBuilder report = new StringBuilder();
+		for (KeySuite suite : KeySuite.values()) {
+			try {
+				report.append(run(suite, payload, iterations)).append('\n');
+			} catch (GeneralSecurityException e) {
+				Log.w(TAG, "Benchmark of " + suite + " failed", e);
+				report.append(suite).append(": failed, ").append(e)
+						.append('\n');
+			}
+		}
+		Log.i(TAG, "Key suite benchmark, " + iterations + " iterations:\n"
+				+ report);
+		return report.toString();
+	}
+
+	private static String run(KeySuite suite, byte[] payload, int iterations)
+			throws GeneralSecurityException {
+		long start = System.nanoTime();
+		KeyPair signing = suite.generateSigningKeyPair();
+		suite.generateEncryptionKeyPair();
+		long keygen = System.nanoTime() - start;
+
+		byte[] signature = null;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			Signature s = suite.newSignature();
+			s.initSign(signing.getPrivate());
+			s.update(payload);
+			signature = s.sign();
+		}
+		long sign = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			Signature s = suite.newSignature();
+			s.initVerify(signing.getPublic());
+			s.update(payload);
+			if (!s.verify(signature)) {
+				throw new GeneralSecurityException("Signature didn't verify");
+			}
+		}
+		long verify = System.nanoTime() - start;
+
+		return String.format("%s (suite %d): keygen %.1f ms, sign %.2f ms,"
+				+ " verify %.2f ms", suite, suite.id, keygen / 1e6,
+				perOp(sign, iterations), perOp(verify, iterations));
+	}
+
+	private static double perOp(long nanos, int iterations) {
+		return nanos / 1e6 / iterations;
+	}
+}
@@ -0,0 +1,66 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Verifies and decodes messages stored before plaintext was kept in the
+ * database, a batch at a time and in order of _id, so that an interrupted
+ * run simply picks up where it left off next unlock. Each batch is
+ * verified on every core by a {@link HistoryVerifier}. Each decoded row
+ * gets its plaintext and verification status, which also puts it in the
+ * search index.
+ */
+class MessageBackfill implements Runnable {
+
+	private static final String TAG = "touch-to-text";
+	private static final int BATCH_SIZE = 100;
+
+	private final DatabaseHelper helper;
+
+	MessageBackfill(DatabaseHelper helper) {
+		this.helper = helper;
+	}
+
+	static void start(DatabaseHelper helper) {
+		Thread t = new Thread(new MessageBackfill(helper), "MessageBackfill");
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	@Override
+	public void run() {
+		long time = System.currentTimeMillis();
+		HistoryVerifier verifier = new HistoryVerifier(helper,
+				HistoryVerifier.THREADS);
+		long lastID = -1;
+		int done = 0;
+		try {
+			while (helper.initialized()) {
+				List<HistoryVerifier.Row> rows = HistoryVerifier.read(helper
+						.getUncheckedMessages(lastID, BATCH_SIZE));
+				if (rows.isEmpty()) {
+					break;
+				}
+				if (!helper.initialized()) {
+					// Locked while reading; resume next time.
+					break;
+				}
+				verifier.verify(rows, true);
+				lastID = rows.get(rows.size() - 1).id;
+				done += rows.size();
+			}
+		} catch (RuntimeException e) {
+			// Most likely the database was locked again; resume next time.
+			Log.w(TAG, "Stopped message backfill", e);
+		} finally {
+			verifier.shutdown();
+		}
+		if (done > 0) {
+			Log.i(TAG, "Backfilled " + done + " messages in "
+					+ (System.currentTimeMillis() - time) + " ms on "
+					+ HistoryVerifier.THREADS + " threads.");
+		}
+	}
+}
@@ -15,8 +15,8 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 import android.widget.TwoLineListItem;
+import edu.ucsb.cs290.touch.to.text.R;
 import edu.ucsb.cs290.touch.to.text.remote.Helpers;
-import edu.ucsb.cs290.touch.to.text.remote.messages.Message;
 import edu.ucsb.cs290.touch.to.text.remote.messages.SignedMessage;
 
 public class MessagesListCursorAdapter extends CursorAdapter {
@@ -31,39 +31,53 @@ public class MessagesListCursorAdapter extends CursorAdapter {
 		this.self = self;
 	}
 
+	/**
+	 * Rows are verified and decoded when they are stored, so binding only
+	 * reads the plaintext column. Rows stored before that was the case are
+	 * still decoded and verified here. A row whose signature check failed,
+	 * when stored or when history was verified again, shows a marker
+	 * instead of its body.
+	 */
 	@Override
 	public void bindView(View view, Context context, Cursor c) {
 		TwoLineListItem v = (TwoLineListItem) view;
 		final Date date = new Date(c.getLong(c
 				.getColumnIndex(DatabaseHelper.DATE_TIME)));
+		final boolean outgoing = c.getInt(c
+				.getColumnIndex(DatabaseHelper.DIRECTION)) == DatabaseHelper.DIRECTION_OUTGOING;
+		final int gravity = outgoing ? Gravity.RIGHT : Gravity.LEFT;
+		v.getText1().setGravity(gravity);
+		v.getText2().setGravity(gravity);
+		String body = null;
+		int verification = c.getInt(c
+				.getColumnIndex(DatabaseHelper.VERIFICATION));
+		if (verification == DatabaseHelper.VERIFICATION_OK) {
+			body = c.getString(c.getColumnIndex(DatabaseHelper.PLAIN_BODY));
+		} else if (verification == DatabaseHelper.VERIFICATION_UNCHECKED) {
+			body = decodeUnchecked(c, outgoing ? self : author);
+		}
+		v.getText1().setText(body != null ? body : context
+				.getString(R.string.message_not_verified));
+		v.getText2().setText(df.format(date));
+	}
+
+	private String decodeUnchecked(Cursor c, PublicKey key) {
 		final SignedMessage sm = (SignedMessage) Helpers.deserialize(c
 				.getBlob(c.getColumnIndex(DatabaseHelper.MESSAGE_BODY)));
-		Message message = null;
 		try {
-			if (sm.getAuthor().equals(author)) {
-				v.getText1().setGravity(Gravity.LEFT);
-				v.getText2().setGravity(Gravity.LEFT);
-				message = sm.getMessage(author);
-			} else if (sm.getAuthor().equals(self)) {
-				v.getText1().setGravity(Gravity.RIGHT);
-				v.getText2().setGravity(Gravity.RIGHT);
-				message = sm.getMessage(self);
+			if (sm.getAuthor().equals(key)) {
+				return sm.getMessage(key).getBody();
 			} else {
 				Log.wtf("touch-to-text", "Author not recognized!!");
 			}
 		} catch (GeneralSecurityException e) {
 			Log.wtf("touch-to-text", "Invalid message!",e);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Log.d("touch-to-text", "Error deserializing signed message", e);
 		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		if(v != null && message != null) {
-			v.getText1().setText(message.getBody());
-			v.getText2().setText(df.format(date));
+			Log.d("touch-to-text", "Error deserializing signed message", e);
 		}
+		return null;
 	}
 
 	@Override
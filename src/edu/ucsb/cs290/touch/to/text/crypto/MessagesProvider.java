@@ -0,0 +1,192 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Read access to the unlocked database for loaders, by URI:
+ *
+ * <pre>
+ * conversations       the conversation list, one row per contact
+ * conversations/#     messages of one conversation, newest page by default
+ * contacts            every contact
+ * contacts/#          one contact
+ * read/#              the read state of a conversation, update only
+ * </pre>
+ *
+ * A conversation accepts {@link #PARAM_SINCE} for rows stored after an ID,
+ * or {@link #PARAM_BEFORE_TIME}, {@link #PARAM_BEFORE_ID} and
+ * {@link #PARAM_LIMIT} for a page of history; see
+ * {@link DatabaseHelper#getMessagesSince(long, long)} and
+ * {@link DatabaseHelper#getMessagesPage(long, long, long, int)}.
+ *
+ * Changes are announced once committed, on the narrowest URI that covers
+ * them: a message on its conversation, a new contact on its contact and a
+ * read-state change on read/#. Anything observing {@link #CONTENT_URI} with
+ * descendants, like the conversation list, sees all of them. Queries return
+ * null while the database is locked.
+ */
+public class MessagesProvider extends ContentProvider {
+
+	public static final String AUTHORITY = "edu.ucsb.cs290.touch.to.text.messages";
+	public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+	public static final Uri CONVERSATIONS_URI = Uri.withAppendedPath(
+			CONTENT_URI, "conversations");
+	public static final Uri CONTACTS_URI = Uri.withAppendedPath(CONTENT_URI,
+			"contacts");
+	public static final Uri READ_STATE_URI = Uri.withAppendedPath(
+			CONTENT_URI, "read");
+
+	public static final String PARAM_SINCE = "since";
+	public static final String PARAM_BEFORE_TIME = "beforeTime";
+	public static final String PARAM_BEFORE_ID = "beforeId";
+	public static final String PARAM_LIMIT = "limit";
+
+	private static final int CONVERSATIONS = 1;
+	private static final int CONVERSATION = 2;
+	private static final int CONTACTS = 3;
+	private static final int CONTACT = 4;
+	private static final int READ_STATE = 5;
+
+	private static final UriMatcher MATCHER = new UriMatcher(
+			UriMatcher.NO_MATCH);
+	static {
+		MATCHER.addURI(AUTHORITY, "conversations", CONVERSATIONS);
+		MATCHER.addURI(AUTHORITY, "conversations/#", CONVERSATION);
+		MATCHER.addURI(AUTHORITY, "contacts", CONTACTS);
+		MATCHER.addURI(AUTHORITY, "contacts/#", CONTACT);
+		MATCHER.addURI(AUTHORITY, "read/#", READ_STATE);
+	}
+
+	// Set by whoever owns the DatabaseHelper; it holds the key, not us.
+	private static volatile DatabaseHelper helper;
+
+	/**
+	 * Serve queries from this helper while it is unlocked.
+	 */
+	public static void attach(DatabaseHelper databaseHelper) {
+		helper = databaseHelper;
+	}
+
+	public static Uri conversationUri(long contactID) {
+		return Uri.withAppendedPath(CONVERSATIONS_URI, String.valueOf(contactID));
+	}
+
+	public static Uri contactUri(long contactID) {
+		return Uri.withAppendedPath(CONTACTS_URI, String.valueOf(contactID));
+	}
+
+	public static Uri readStateUri(long contactID) {
+		return Uri.withAppendedPath(READ_STATE_URI, String.valueOf(contactID));
+	}
+
+	@Override
+	public boolean onCreate() {
+		return true;
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection,
+			String[] selectionArgs, String sortOrder) {
+		DatabaseHelper h = helper;
+		if (h == null || !h.initialized()) {
+			return null;
+		}
+		Cursor c;
+		Uri observed = uri;
+		try {
+			switch (MATCHER.match(uri)) {
+			case CONVERSATIONS:
+				c = h.getContactsCursor();
+				// Summaries change with every message, contact and read state.
+				observed = CONTENT_URI;
+				break;
+			case CONVERSATION:
+				c = queryConversation(h, uri);
+				break;
+			case CONTACTS:
+				c = h.getContactCursor();
+				break;
+			case CONTACT:
+				c = h.getContactCursor(Long.parseLong(uri
+						.getLastPathSegment()));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown URI " + uri);
+			}
+		} catch (IllegalStateException e) {
+			// Locked while the query ran; loaders retry at the next unlock.
+			return null;
+		}
+		c.setNotificationUri(getContext().getContentResolver(), observed);
+		return c;
+	}
+
+	private static Cursor queryConversation(DatabaseHelper h, Uri uri) {
+		long id = Long.parseLong(uri.getLastPathSegment());
+		String since = uri.getQueryParameter(PARAM_SINCE);
+		if (since != null) {
+			return h.getMessagesSince(id, Long.parseLong(since));
+		}
+		return h.getMessagesPage(id,
+				longParameter(uri, PARAM_BEFORE_TIME, Long.MAX_VALUE),
+				longParameter(uri, PARAM_BEFORE_ID, Long.MAX_VALUE),
+				(int) longParameter(uri, PARAM_LIMIT,
+						DatabaseHelper.MESSAGES_PAGE_SIZE));
+	}
+
+	private static long longParameter(Uri uri, String name, long otherwise) {
+		String value = uri.getQueryParameter(name);
+		return value == null ? otherwise : Long.parseLong(value);
+	}
+
+	/**
+	 * Only read/# with {@link DatabaseHelper#READ} set to
+	 * {@link DatabaseHelper#MESSAGE_READ} is supported: it marks the whole
+	 * conversation read. The write is queued, so this returns 0 and the
+	 * change is announced on read/# once it is committed.
+	 */
+	@Override
+	public int update(Uri uri, ContentValues values, String selection,
+			String[] selectionArgs) {
+		DatabaseHelper h = helper;
+		if (MATCHER.match(uri) != READ_STATE
+				|| !Integer.valueOf(DatabaseHelper.MESSAGE_READ).equals(
+						values.getAsInteger(DatabaseHelper.READ))) {
+			throw new UnsupportedOperationException("Can't update " + uri);
+		}
+		if (h != null && h.initialized()) {
+			h.markConversationRead(Long.parseLong(uri.getLastPathSegment()));
+		}
+		return 0;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		throw new UnsupportedOperationException("Read only: " + uri);
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException("Read only: " + uri);
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		switch (MATCHER.match(uri)) {
+		case CONVERSATIONS:
+			return "vnd.android.cursor.dir/vnd.touchtotext.conversation";
+		case CONVERSATION:
+			return "vnd.android.cursor.dir/vnd.touchtotext.message";
+		case CONTACTS:
+			return "vnd.android.cursor.dir/vnd.touchtotext.contact";
+		case CONTACT:
+			return "vnd.android.cursor.item/vnd.touchtotext.contact";
+		default:
+			return null;
+		}
+	}
+}
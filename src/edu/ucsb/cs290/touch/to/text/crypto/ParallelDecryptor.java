@@ -0,0 +1,97 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * Decrypts and verifies a backlog of received messages on one thread per
+ * core. Each message costs an ElGamal decryption and a DSA verification,
+ * and they are independent of each other, so a backlog drains about as
+ * many times faster as there are cores. Results come back in the order the
+ * messages were given, ready for {@link DatabaseHelper#persist(List)}.
+ */
+class ParallelDecryptor {
+
+	private static final String TAG = "touch-to-text";
+
+	static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private final DatabaseHelper helper;
+	private final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+
+	ParallelDecryptor(DatabaseHelper helper) {
+		this.helper = helper;
+	}
+
+	/**
+	 * Admit, decrypt, verify and resolve each ciphertext. Blocks until all
+	 * of them are done.
+	 *
+	 * @return one entry per ciphertext, in order; null for a duplicate or a
+	 *         message that failed
+	 */
+	List<InboundMessage> open(List<byte[]> ciphertexts) {
+		List<Future<InboundMessage>> pending = new ArrayList<Future<InboundMessage>>();
+		for (byte[] ciphertext : ciphertexts) {
+			// In order on this thread, so duplicates within the batch are caught.
+			final InboundMessage m = helper.admit(ciphertext);
+			if (m == null) {
+				pending.add(null);
+				continue;
+			}
+			pending.add(pool.submit(new Callable<InboundMessage>() {
+				@Override
+				public InboundMessage call() {
+					try {
+						helper.decrypt(m);
+						helper.verify(m);
+						helper.resolve(m);
+					} catch (GeneralSecurityException e) {
+						Log.w(TAG, "Dropped a message that failed to decrypt", e);
+					} catch (IOException e) {
+						Log.d(TAG, "Error deserializing signed message", e);
+					} catch (ClassNotFoundException e) {
+						Log.d(TAG, "Error deserializing signed message", e);
+					} catch (RuntimeException e) {
+						Log.w(TAG, "Dropped an unreadable message", e);
+					}
+					return m;
+				}
+			}));
+		}
+		List<InboundMessage> opened = new ArrayList<InboundMessage>();
+		for (Future<InboundMessage> f : pending) {
+			InboundMessage m = f == null ? null : result(f);
+			if (m != null && !m.isVerified()) {
+				helper.discard(m);
+				m = null;
+			}
+			opened.add(m);
+		}
+		return opened;
+	}
+
+	private static InboundMessage result(Future<InboundMessage> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.w(TAG, "Dropped an unreadable message", e.getCause());
+		}
+		return null;
+	}
+
+	void shutdown() {
+		pool.shutdown();
+	}
+}
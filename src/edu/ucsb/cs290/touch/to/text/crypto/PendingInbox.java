@@ -0,0 +1,211 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * Messages that arrive while the app is locked, kept until the next unlock.
+ * Only the ciphertext as delivered and its arrival time are stored: the
+ * payload is already encrypted to our key, and this database can't use the
+ * password because it isn't available yet.
+ *
+ * The queue holds at most {@link #MAX_MESSAGES}. When it is full the oldest
+ * message is dropped to make room, since the sender has most likely sent
+ * something newer since.
+ */
+public class PendingInbox extends SQLiteOpenHelper {
+
+	private static final String TAG = "touch-to-text";
+
+	private static PendingInbox instance = null;
+
+	// DB Strings
+	public static final String INBOX_TABLE = "Inbox";
+	public static final String INBOX_ID = "_id";
+	public static final String ARRIVAL_TIME = "arrivalTime";
+	public static final String CIPHERTEXT = "ciphertext";
+
+	private static final String CREATE_INBOX_COMMAND =
+			"CREATE TABLE " + INBOX_TABLE + " ( "
+					+ INBOX_ID + " INTEGER PRIMARY KEY autoincrement, "
+					+ ARRIVAL_TIME + " INTEGER, "
+					+ CIPHERTEXT + " BLOB);";
+
+	static final int MAX_MESSAGES = 1000;
+	// Messages decrypted together and committed per transaction when draining
+	static final int DRAIN_BATCH_SIZE = 100;
+
+	private static final String DATABASE_NAME = "pendingInbox.db";
+	// Held whole Intent parcels, and lost their bodies
+	private static final String OLD_DATABASE_NAME = "delayedIntents.db";
+	private static final int DATABASE_VERSION = 1;
+
+	private int dropped = 0;
+	// Held for the whole of a drain; the instance lock only around inbox I/O
+	private final Object drainLock = new Object();
+	private volatile boolean drainCancelled = false;
+
+	private PendingInbox(Context ctx) {
+		super(ctx.getApplicationContext(), DATABASE_NAME, null,
+				DATABASE_VERSION);
+	}
+
+	public static synchronized PendingInbox getInstance(Context context) {
+		if (instance == null) {
+			context.getApplicationContext().deleteDatabase(OLD_DATABASE_NAME);
+			instance = new PendingInbox(context);
+		}
+		return instance;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL(CREATE_INBOX_COMMAND);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+	}
+
+	/**
+	 * Queue a message until the next unlock, dropping the oldest queued
+	 * message if the inbox is full.
+	 */
+	public synchronized void add(byte[] ciphertext) {
+		SQLiteDatabase db = getWritableDatabase();
+		ContentValues values = new ContentValues();
+		values.put(ARRIVAL_TIME, System.currentTimeMillis());
+		values.put(CIPHERTEXT, ciphertext);
+		db.beginTransaction();
+		try {
+			db.insert(INBOX_TABLE, null, values);
+			int overflow = db.delete(INBOX_TABLE, INBOX_ID + " IN (SELECT "
+					+ INBOX_ID + " FROM " + INBOX_TABLE + " ORDER BY "
+					+ INBOX_ID + " DESC LIMIT -1 OFFSET " + MAX_MESSAGES
+					+ ")", null);
+			db.setTransactionSuccessful();
+			if (overflow > 0) {
+				dropped += overflow;
+				Log.w(TAG, "Pending inbox full, dropped " + overflow
+						+ " oldest messages (" + dropped + " total)");
+			}
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * @return messages waiting for the next unlock
+	 */
+	public synchronized long size() {
+		Cursor c = getReadableDatabase().rawQuery(
+				"SELECT COUNT(*) FROM " + INBOX_TABLE, null);
+		try {
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Ingest every queued message, oldest first, in batches. The messages of
+	 * a batch are decrypted and verified in parallel, then stored in order
+	 * in one write transaction. A batch is removed from the inbox once its
+	 * messages are committed to the encrypted database. If the process dies
+	 * in between, the batch is read again and its messages are dropped as
+	 * duplicates. If the commit fails, the batch stays in the inbox and
+	 * draining stops until the next unlock, as it does when the database is
+	 * locked or {@link #cancelDrain()} is called.
+	 *
+	 * The inbox is only locked while a batch is read and while it is
+	 * deleted, so {@link #add} never waits for decryption. Blocks; don't
+	 * call on the UI thread.
+	 *
+	 * @return the number of messages taken out of the inbox
+	 */
+	public int drainInto(DatabaseHelper helper) {
+		synchronized (drainLock) {
+			drainCancelled = false;
+			long backlog = size();
+			if (backlog == 0) {
+				return 0;
+			}
+			long start = System.currentTimeMillis();
+			long oldestArrival = Long.MAX_VALUE;
+			int drained = 0;
+			int stored = 0;
+			ParallelDecryptor decryptor = new ParallelDecryptor(helper);
+			try {
+				while (!drainCancelled && helper.initialized()) {
+					List<byte[]> batch = new ArrayList<byte[]>();
+					long lastID = -1;
+					synchronized (this) {
+						Cursor c = getReadableDatabase().query(INBOX_TABLE,
+								new String[] { INBOX_ID, ARRIVAL_TIME,
+										CIPHERTEXT }, null, null, null, null,
+								INBOX_ID + " ASC",
+								String.valueOf(DRAIN_BATCH_SIZE));
+						try {
+							for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+								lastID = c.getLong(0);
+								oldestArrival = Math.min(oldestArrival,
+										c.getLong(1));
+								batch.add(c.getBlob(2));
+							}
+						} finally {
+							c.close();
+						}
+					}
+					if (batch.isEmpty()) {
+						break;
+					}
+					int persisted = helper.persist(decryptor.open(batch));
+					if (!helper.awaitPendingWrites()) {
+						// Keep the batch for the next unlock rather than
+						// retrying a write that just failed.
+						Log.w(TAG, "Stopped draining the inbox, a batch of "
+								+ batch.size() + " messages wasn't committed");
+						break;
+					}
+					stored += persisted;
+					synchronized (this) {
+						// Rows add() dropped meanwhile are already gone
+						getWritableDatabase().delete(INBOX_TABLE,
+								INBOX_ID + " <= ?",
+								new String[] { String.valueOf(lastID) });
+					}
+					drained += batch.size();
+				}
+			} finally {
+				decryptor.shutdown();
+			}
+			long time = System.currentTimeMillis() - start;
+			Log.i(TAG, "Drained a backlog of " + backlog
+					+ " pending messages (" + stored + " stored) in " + time
+					+ " ms on " + ParallelDecryptor.THREADS + " threads, "
+					+ (time == 0 ? drained : drained * 1000 / time)
+					+ " messages/s; oldest waited "
+					+ (start - oldestArrival) / 1000 + " s");
+			return drained;
+		}
+	}
+
+	/**
+	 * Stop a drain in progress after the batch it is on, and wait for it
+	 * to return. Call before locking, so no batch is stored against a
+	 * closing database.
+	 */
+	public void cancelDrain() {
+		drainCancelled = true;
+		synchronized (drainLock) {
+			// Held by the drain until it returns
+		}
+	}
+}
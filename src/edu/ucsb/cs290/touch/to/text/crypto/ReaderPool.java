@@ -0,0 +1,178 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.util.Log;
+
+/**
+ * Read-only connections to the encrypted database for UI queries. With the
+ * database in WAL mode each connection reads the last committed snapshot
+ * without waiting for the writer, so a burst of incoming messages doesn't
+ * hold up paging through a conversation.
+ *
+ * Every connection pays for its own key derivation, so they are opened on a
+ * background thread after unlock. Until one is ready, {@link #rawQuery}
+ * returns null and callers use the main handle.
+ *
+ * Loaders keep their cursors after the database is locked, until they are
+ * reset. So each connection counts the cursors open on it, and
+ * {@link #close()} leaves a connection in use open until its last cursor is
+ * closed.
+ */
+class ReaderPool {
+
+	static final int SIZE = 2;
+
+	// Guarded by this
+	private final List<SQLiteDatabase> readers = new ArrayList<SQLiteDatabase>(
+			SIZE);
+	private final Map<SQLiteDatabase, Integer> users = new HashMap<SQLiteDatabase, Integer>();
+	private int next = 0;
+	private boolean closed = false;
+
+	/**
+	 * A cursor that lets go of its connection when it is closed.
+	 */
+	private final class Leased extends CursorWrapper {
+		private final SQLiteDatabase reader;
+		private boolean released = false;
+
+		Leased(Cursor c, SQLiteDatabase reader) {
+			super(c);
+			this.reader = reader;
+		}
+
+		@Override
+		public void close() {
+			try {
+				super.close();
+			} finally {
+				synchronized (this) {
+					if (released) {
+						return;
+					}
+					released = true;
+				}
+				release(reader);
+			}
+		}
+	}
+
+	/**
+	 * Start opening the connections in the background. The password is
+	 * wiped once they are open.
+	 */
+	void open(final File path, final char[] password,
+			final CipherSettings settings) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < SIZE && !isClosed(); i++) {
+						long time = System.currentTimeMillis();
+						SQLiteDatabase reader = SQLiteDatabase.openDatabase(
+								path.getPath(), String.valueOf(password), null,
+								SQLiteDatabase.OPEN_READONLY, settings.hook());
+						reader.rawExecSQL("PRAGMA cache_size = "
+								+ settings.getCacheSize());
+						if (!add(reader)) {
+							return;
+						}
+						Log.d("db", "Opened reader connection " + i + " in "
+								+ (System.currentTimeMillis() - time) + " ms");
+					}
+				} catch (RuntimeException e) {
+					Log.w("db", "Could not open a reader connection", e);
+				} finally {
+					Arrays.fill(password, '\0');
+				}
+			}
+		}, "ReaderPool");
+		t.setPriority(Thread.NORM_PRIORITY - 1);
+		t.start();
+	}
+
+	/**
+	 * Run a query on a reader connection, round robin. The connection stays
+	 * open until the cursor is closed.
+	 * 
+	 * @return the cursor, or null if no connection is open
+	 */
+	Cursor rawQuery(String sql, String[] selectionArgs) {
+		SQLiteDatabase reader = acquire();
+		if (reader == null) {
+			return null;
+		}
+		boolean leased = false;
+		try {
+			Cursor c = new Leased(reader.rawQuery(sql, selectionArgs), reader);
+			leased = true;
+			return c;
+		} finally {
+			if (!leased) {
+				release(reader);
+			}
+		}
+	}
+
+	/**
+	 * Close every connection without open cursors now, and the others when
+	 * their last cursor is closed.
+	 */
+	synchronized void close() {
+		closed = true;
+		for (SQLiteDatabase reader : readers) {
+			if (!users.containsKey(reader)) {
+				reader.close();
+			}
+		}
+		readers.clear();
+	}
+
+	private synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return false if the pool was closed meanwhile, and reader with it
+	 */
+	private synchronized boolean add(SQLiteDatabase reader) {
+		if (closed) {
+			reader.close();
+			return false;
+		}
+		readers.add(reader);
+		return true;
+	}
+
+	private synchronized SQLiteDatabase acquire() {
+		if (closed || readers.isEmpty()) {
+			return null;
+		}
+		next = (next + 1) % readers.size();
+		SQLiteDatabase reader = readers.get(next);
+		Integer n = users.get(reader);
+		users.put(reader, n == null ? 1 : n + 1);
+		return reader;
+	}
+
+	private synchronized void release(SQLiteDatabase reader) {
+		int n = users.get(reader) - 1;
+		if (n > 0) {
+			users.put(reader, n);
+			return;
+		}
+		users.remove(reader);
+		if (closed) {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+/**
+ * Drops incoming messages that were already received, before any
+ * decryption or signature check is spent on them. GCM may deliver a message
+ * more than once and redelivered intents replay it, so every ciphertext is
+ * identified by its SHA-256 digest: the most recent digests are kept in
+ * memory, and anything older is found through the unique index on the
+ * Messages digest column.
+ */
+class RecentDigests {
+
+	static final int CAPACITY = 1024;
+
+	private final Map<ByteBuffer, Boolean> recent = new LinkedHashMap<ByteBuffer, Boolean>(
+			CAPACITY, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+
+	// The index lookup, compiled once per unlock
+	private final StatementCache statements = new StatementCache();
+
+	private final AtomicLong duplicatesInMemory = new AtomicLong();
+	private final AtomicLong duplicatesInDatabase = new AtomicLong();
+
+	static byte[] digest(byte[] ciphertext) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(ciphertext);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Record a digest as seen.
+	 *
+	 * @return true the first time a digest is seen, false for a duplicate
+	 */
+	boolean firstSighting(SQLiteDatabase db, byte[] digest) {
+		ByteBuffer key = ByteBuffer.wrap(digest);
+		synchronized (recent) {
+			if (recent.put(key, Boolean.TRUE) != null) {
+				duplicatesInMemory.incrementAndGet();
+				return false;
+			}
+		}
+		if (isStored(db, digest)) {
+			duplicatesInDatabase.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Forget a digest whose message could not be stored, so a later
+	 * delivery gets another chance.
+	 */
+	void forget(byte[] digest) {
+		synchronized (recent) {
+			recent.remove(ByteBuffer.wrap(digest));
+		}
+	}
+
+	/**
+	 * Forget every digest and close the compiled lookup. Call before the
+	 * database handle is closed.
+	 */
+	void clear() {
+		synchronized (recent) {
+			recent.clear();
+		}
+		statements.close();
+	}
+
+	private boolean isStored(SQLiteDatabase db, byte[] digest) {
+		return statements.queryForLong(db,
+				StatementCache.Statement.COUNT_DIGEST, digest) > 0;
+	}
+
+	long getDuplicateCount() {
+		return duplicatesInMemory.get() + duplicatesInDatabase.get();
+	}
+
+	String statistics() {
+		return duplicatesInMemory.get() + " duplicates caught in memory, "
+				+ duplicatesInDatabase.get() + " by the digest index";
+	}
+}
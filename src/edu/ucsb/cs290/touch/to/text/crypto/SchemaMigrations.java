@@ -0,0 +1,273 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Ordered schema changes for the encrypted database. Version 1 is the
+ * original Messages and Contacts tables; every later version is one entry in
+ * {@link #MIGRATIONS}, applied in order both on upgrade and after a fresh
+ * create, so new installs and upgraded installs end up with the same schema.
+ *
+ * To change the schema, append a migration and bump
+ * {@link DatabaseHelper#DATABASE_VERSION}.
+ */
+final class SchemaMigrations {
+
+	private SchemaMigrations() {
+	}
+
+	abstract static class Migration {
+		final int version;
+
+		Migration(int version) {
+			this.version = version;
+		}
+
+		abstract void apply(SQLiteDatabase db);
+	}
+
+	private static final Migration[] MIGRATIONS = new Migration[] {
+		/*
+		 * Version 2: store the other party of each message in one column so
+		 * that a conversation is a single indexed range instead of
+		 * "recipient=? OR sender=?", and index contact fingerprints for the
+		 * receive path.
+		 */
+		new Migration(2) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				db.execSQL("ALTER TABLE " + DatabaseHelper.MESSAGES_TABLE
+						+ " ADD COLUMN " + DatabaseHelper.CONVERSATION_ID
+						+ " INTEGER");
+				db.execSQL("UPDATE " + DatabaseHelper.MESSAGES_TABLE
+						+ " SET " + DatabaseHelper.CONVERSATION_ID
+						+ " = CASE WHEN " + DatabaseHelper.SENDER_ID + " = "
+						+ DatabaseHelper.MY_CONTACT_ID + " THEN "
+						+ DatabaseHelper.RECIPIENT_ID + " ELSE "
+						+ DatabaseHelper.SENDER_ID + " END");
+				db.execSQL("CREATE INDEX messages_conversation_idx ON "
+						+ DatabaseHelper.MESSAGES_TABLE + " ("
+						+ DatabaseHelper.CONVERSATION_ID + ", "
+						+ DatabaseHelper.DATE_TIME + ", "
+						+ DatabaseHelper.MESSAGES_ID + ")");
+				db.execSQL("CREATE INDEX contacts_fingerprint_idx ON "
+						+ DatabaseHelper.CONTACTS_TABLE + " ("
+						+ DatabaseHelper.PUBLIC_KEY_FINGERPRINT + ")");
+			}
+		},
+		/*
+		 * Version 3: keep the verified plaintext, direction and verification
+		 * result next to the signed blob, so rendering a row needs no crypto.
+		 * Existing rows stay unchecked and are decoded the old way.
+		 */
+		new Migration(3) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				db.execSQL("ALTER TABLE " + DatabaseHelper.MESSAGES_TABLE
+						+ " ADD COLUMN " + DatabaseHelper.PLAIN_BODY
+						+ " TEXT");
+				db.execSQL("ALTER TABLE " + DatabaseHelper.MESSAGES_TABLE
+						+ " ADD COLUMN " + DatabaseHelper.DIRECTION
+						+ " INTEGER");
+				db.execSQL("ALTER TABLE " + DatabaseHelper.MESSAGES_TABLE
+						+ " ADD COLUMN " + DatabaseHelper.VERIFICATION
+						+ " INTEGER DEFAULT "
+						+ DatabaseHelper.VERIFICATION_UNCHECKED);
+				db.execSQL("UPDATE " + DatabaseHelper.MESSAGES_TABLE
+						+ " SET " + DatabaseHelper.DIRECTION + " = CASE WHEN "
+						+ DatabaseHelper.SENDER_ID + " = "
+						+ DatabaseHelper.MY_CONTACT_ID + " THEN "
+						+ DatabaseHelper.DIRECTION_OUTGOING + " ELSE "
+						+ DatabaseHelper.DIRECTION_INCOMING + " END");
+			}
+		},
+		/*
+		 * Version 4: a per-conversation summary for the conversation list,
+		 * maintained by triggers so it commits with the message or read-state
+		 * change that caused it.
+		 */
+		new Migration(4) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				final String messages = DatabaseHelper.MESSAGES_TABLE;
+				final String summary = DatabaseHelper.SUMMARY_TABLE;
+				final String contact = DatabaseHelper.SUMMARY_CONTACT_ID;
+				final String preview = "substr(NEW." + DatabaseHelper.PLAIN_BODY
+						+ ", 1, " + DatabaseHelper.PREVIEW_LENGTH + ")";
+				db.execSQL("CREATE TABLE " + summary + " (" + contact
+						+ " INTEGER PRIMARY KEY, "
+						+ DatabaseHelper.LAST_MESSAGE_TIME + " INTEGER, "
+						+ DatabaseHelper.PREVIEW + " TEXT, "
+						+ DatabaseHelper.UNREAD_COUNT + " INTEGER DEFAULT 0, "
+						+ DatabaseHelper.LAST_DIRECTION + " INTEGER)");
+				db.execSQL("CREATE TRIGGER summary_on_insert AFTER INSERT ON "
+						+ messages + " BEGIN "
+						+ "INSERT OR IGNORE INTO " + summary + " (" + contact
+						+ ") VALUES (NEW." + DatabaseHelper.CONVERSATION_ID + "); "
+						+ "UPDATE " + summary + " SET "
+						+ DatabaseHelper.LAST_MESSAGE_TIME + " = NEW."
+						+ DatabaseHelper.DATE_TIME + ", "
+						+ DatabaseHelper.PREVIEW + " = " + preview + ", "
+						+ DatabaseHelper.LAST_DIRECTION + " = NEW."
+						+ DatabaseHelper.DIRECTION + " WHERE " + contact
+						+ " = NEW." + DatabaseHelper.CONVERSATION_ID + " AND ("
+						+ DatabaseHelper.LAST_MESSAGE_TIME + " IS NULL OR "
+						+ DatabaseHelper.LAST_MESSAGE_TIME + " <= NEW."
+						+ DatabaseHelper.DATE_TIME + "); "
+						+ "UPDATE " + summary + " SET "
+						+ DatabaseHelper.UNREAD_COUNT + " = "
+						+ DatabaseHelper.UNREAD_COUNT + " + 1 WHERE " + contact
+						+ " = NEW." + DatabaseHelper.CONVERSATION_ID + " AND NEW."
+						+ DatabaseHelper.READ + " = "
+						+ DatabaseHelper.MESSAGE_UNREAD + "; END");
+				db.execSQL("CREATE TRIGGER summary_on_read AFTER UPDATE OF "
+						+ DatabaseHelper.READ + " ON " + messages + " WHEN OLD."
+						+ DatabaseHelper.READ + " != NEW." + DatabaseHelper.READ
+						+ " BEGIN UPDATE " + summary + " SET "
+						+ DatabaseHelper.UNREAD_COUNT + " = "
+						+ DatabaseHelper.UNREAD_COUNT + " + CASE NEW."
+						+ DatabaseHelper.READ + " WHEN "
+						+ DatabaseHelper.MESSAGE_UNREAD
+						+ " THEN 1 ELSE -1 END WHERE " + contact + " = NEW."
+						+ DatabaseHelper.CONVERSATION_ID + "; END");
+				// Summarize the history that is already there.
+				db.execSQL("INSERT INTO " + summary + " (" + contact + ", "
+						+ DatabaseHelper.LAST_MESSAGE_TIME + ", "
+						+ DatabaseHelper.UNREAD_COUNT + ") SELECT "
+						+ DatabaseHelper.CONVERSATION_ID + ", MAX("
+						+ DatabaseHelper.DATE_TIME + "), SUM("
+						+ DatabaseHelper.READ + " = "
+						+ DatabaseHelper.MESSAGE_UNREAD + ") FROM " + messages
+						+ " GROUP BY " + DatabaseHelper.CONVERSATION_ID);
+				String newest = " FROM " + messages + " m WHERE m."
+						+ DatabaseHelper.CONVERSATION_ID + " = " + summary + "."
+						+ contact + " ORDER BY m." + DatabaseHelper.DATE_TIME
+						+ " DESC, m." + DatabaseHelper.MESSAGES_ID
+						+ " DESC LIMIT 1)";
+				db.execSQL("UPDATE " + summary + " SET "
+						+ DatabaseHelper.PREVIEW + " = (SELECT substr(m."
+						+ DatabaseHelper.PLAIN_BODY + ", 1, "
+						+ DatabaseHelper.PREVIEW_LENGTH + ")" + newest + ", "
+						+ DatabaseHelper.LAST_DIRECTION + " = (SELECT m."
+						+ DatabaseHelper.DIRECTION + newest);
+			}
+		},
+		/*
+		 * Version 5: full-text index over the verified plaintext, inside the
+		 * encrypted database. Rows enter the index when they are stored with
+		 * a plaintext, or when the backfill decodes an older row.
+		 */
+		new Migration(5) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				final String search = DatabaseHelper.SEARCH_TABLE;
+				final String body = DatabaseHelper.PLAIN_BODY;
+				db.execSQL("CREATE VIRTUAL TABLE " + search + " USING fts4("
+						+ body + ")");
+				db.execSQL("CREATE TRIGGER search_on_insert AFTER INSERT ON "
+						+ DatabaseHelper.MESSAGES_TABLE + " WHEN NEW." + body
+						+ " IS NOT NULL BEGIN INSERT INTO " + search
+						+ " (docid, " + body + ") VALUES (NEW."
+						+ DatabaseHelper.MESSAGES_ID + ", NEW." + body
+						+ "); END");
+				db.execSQL("CREATE TRIGGER search_on_backfill AFTER UPDATE OF "
+						+ body + " ON " + DatabaseHelper.MESSAGES_TABLE
+						+ " WHEN OLD." + body + " IS NULL AND NEW." + body
+						+ " IS NOT NULL BEGIN INSERT INTO " + search
+						+ " (docid, " + body + ") VALUES (NEW."
+						+ DatabaseHelper.MESSAGES_ID + ", NEW." + body
+						+ "); END");
+				db.execSQL("INSERT INTO " + search + " (docid, " + body
+						+ ") SELECT " + DatabaseHelper.MESSAGES_ID + ", "
+						+ body + " FROM " + DatabaseHelper.MESSAGES_TABLE
+						+ " WHERE " + body + " IS NOT NULL");
+			}
+		},
+		/*
+		 * Version 6: a digest of each received ciphertext, so a message
+		 * delivered twice is only stored once. Older rows have no digest, and
+		 * NULLs don't collide in a unique index.
+		 */
+		new Migration(6) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				db.execSQL("ALTER TABLE " + DatabaseHelper.MESSAGES_TABLE
+						+ " ADD COLUMN " + DatabaseHelper.DIGEST + " BLOB");
+				db.execSQL("CREATE UNIQUE INDEX messages_digest_idx ON "
+						+ DatabaseHelper.MESSAGES_TABLE + " ("
+						+ DatabaseHelper.DIGEST + ")");
+			}
+		},
+		/*
+		 * Version 7: outgoing tokens signed ahead of time, a few per
+		 * contact, so handing one out doesn't wait for a signature.
+		 */
+		new Migration(7) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				db.execSQL("CREATE TABLE " + DatabaseHelper.TOKEN_POOL_TABLE
+						+ " (" + DatabaseHelper.TOKEN_POOL_ID
+						+ " INTEGER PRIMARY KEY, "
+						+ DatabaseHelper.TOKEN_POOL_CONTACT + " INTEGER, "
+						+ DatabaseHelper.TOKEN_POOL_TOKEN + " BLOB)");
+			}
+		},
+		/*
+		 * Version 8: previews for history stored before version 3. Those
+		 * rows had no plaintext when version 4 summarized them, and the
+		 * insert trigger doesn't see the backfill decode them later. Refresh
+		 * a conversation's preview when its newest row gets a plaintext, and
+		 * fill in the ones the backfill already decoded.
+		 */
+		new Migration(8) {
+			@Override
+			void apply(SQLiteDatabase db) {
+				final String messages = DatabaseHelper.MESSAGES_TABLE;
+				final String summary = DatabaseHelper.SUMMARY_TABLE;
+				final String contact = DatabaseHelper.SUMMARY_CONTACT_ID;
+				final String newestPreview = "(SELECT substr(m."
+						+ DatabaseHelper.PLAIN_BODY + ", 1, "
+						+ DatabaseHelper.PREVIEW_LENGTH + ") FROM " + messages
+						+ " m WHERE m." + DatabaseHelper.CONVERSATION_ID
+						+ " = " + summary + "." + contact + " ORDER BY m."
+						+ DatabaseHelper.DATE_TIME + " DESC, m."
+						+ DatabaseHelper.MESSAGES_ID + " DESC LIMIT 1)";
+				db.execSQL("CREATE TRIGGER summary_on_backfill AFTER UPDATE OF "
+						+ DatabaseHelper.PLAIN_BODY + " ON " + messages
+						+ " WHEN OLD." + DatabaseHelper.PLAIN_BODY
+						+ " IS NULL AND NEW." + DatabaseHelper.PLAIN_BODY
+						+ " IS NOT NULL BEGIN UPDATE " + summary + " SET "
+						+ DatabaseHelper.PREVIEW + " = " + newestPreview
+						+ " WHERE " + contact + " = NEW."
+						+ DatabaseHelper.CONVERSATION_ID + "; END");
+				db.execSQL("UPDATE " + summary + " SET "
+						+ DatabaseHelper.PREVIEW + " = " + newestPreview
+						+ " WHERE " + DatabaseHelper.PREVIEW + " IS NULL");
+			}
+		},
+	};
+
+	/**
+	 * Bring a database from oldVersion up to newVersion in a single
+	 * transaction. A failed step rolls everything back, and the open fails
+	 * rather than leaving a half-migrated file.
+	 */
+	static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+		db.beginTransaction();
+		try {
+			for (Migration m : MIGRATIONS) {
+				if (m.version > oldVersion && m.version <= newVersion) {
+					long time = System.currentTimeMillis();
+					m.apply(db);
+					Log.i("touch-to-text", "Migrated database to version "
+							+ m.version + " in "
+							+ (System.currentTimeMillis() - time) + " ms.");
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+}
@@ -19,16 +19,26 @@ public class SealablePublicKey implements Serializable {
 	
 	/**
 	 * Version 1L has an ElGamal publicKey, and two DSA public keys. It also has a SignedObject containing a UUID.
+	 * The ECDSA and ECDH keys of {@link KeySuite#EC_P256} are null if the owner has none.
 	 */
 	private static final long serialVersionUID = 1L;
 	private final PublicKey signingKey;
 	private final PublicKey encryptionKey;
 	private final PublicKey tokenKey;
 	private final SignedObject signedToken;
+	private final PublicKey ecSigningKey;
+	private final PublicKey ecEncryptionKey;
 
 	public SealablePublicKey(PublicKey signingKey, PublicKey encryptingKey, KeyPair tokenKey) {
+		this(signingKey, encryptingKey, tokenKey, null, null);
+	}
+
+	public SealablePublicKey(PublicKey signingKey, PublicKey encryptingKey,
+			KeyPair tokenKey, PublicKey ecSigningKey, PublicKey ecEncryptionKey) {
 		this.signingKey = signingKey;
 		this.encryptionKey = encryptingKey;
+		this.ecSigningKey = ecSigningKey;
+		this.ecEncryptionKey = ecEncryptionKey;
 		this.tokenKey = tokenKey.getPublic();
 		SignedObject st = null;
 		try {
@@ -42,10 +52,18 @@ public class SealablePublicKey implements Serializable {
 	}
 	
 	public SealablePublicKey(PublicKey signingKey, PublicKey encryptingKey, PublicKey tokenKey, SignedObject signedToken) {
+		this(signingKey, encryptingKey, tokenKey, signedToken, null, null);
+	}
+
+	public SealablePublicKey(PublicKey signingKey, PublicKey encryptingKey,
+			PublicKey tokenKey, SignedObject signedToken,
+			PublicKey ecSigningKey, PublicKey ecEncryptionKey) {
 		this.signingKey = signingKey;
 		this.encryptionKey = encryptingKey;
 		this.signedToken = signedToken;
 		this.tokenKey = tokenKey;
+		this.ecSigningKey = ecSigningKey;
+		this.ecEncryptionKey = ecEncryptionKey;
 	}
 
 	public SealablePublicKey(SealablePublicKey currentContact,
@@ -54,6 +72,8 @@ public class SealablePublicKey implements Serializable {
 		encryptionKey = currentContact.encrypt();
 		tokenKey = currentContact.address();
 		signedToken = recievedToken;
+		ecSigningKey = currentContact.ecSigningKey;
+		ecEncryptionKey = currentContact.ecEncryptionKey;
 	}
 
 	public String digest() {
@@ -89,7 +109,36 @@ public class SealablePublicKey implements Serializable {
 	public PublicKey address() {
 		return tokenKey;
 	}
+
+	/**
+	 * @return the signature key of a suite, or null if this key has none
+	 */
+	public PublicKey sign(KeySuite suite) {
+		return suite == KeySuite.EC_P256 ? ecSigningKey : signingKey;
+	}
+
+	/**
+	 * @return the encryption key of a suite, or null if this key has none
+	 */
+	public PublicKey encrypt(KeySuite suite) {
+		return suite == KeySuite.EC_P256 ? ecEncryptionKey : encryptionKey;
+	}
 	
+	/**
+	 * @return this key in the compact binary format, for storage and
+	 * exchange.
+	 */
+	public byte[] toBytes() {
+		return BinaryCodec.encode(this);
+	}
+
+	/**
+	 * Read a key written by {@link #toBytes()} or by Java serialization.
+	 */
+	public static SealablePublicKey fromBytes(byte[] b) {
+		return BinaryCodec.decodeSealablePublicKey(b);
+	}
+
 	public String signingKeyFingerprint() {
 		return Helpers.getKeyFingerprint(signingKey);
 	}
@@ -0,0 +1,65 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+/**
+ * One message matching a full-text search, with enough context to show it
+ * in a result list and open its conversation.
+ */
+public class SearchHit implements Comparable<SearchHit> {
+	private final long messageID;
+	private final long contactID;
+	private final String contactName;
+	private final long dateTime;
+	private final String snippet;
+	private final double score;
+
+	SearchHit(long messageID, long contactID, String contactName,
+			long dateTime, String snippet, double score) {
+		this.messageID = messageID;
+		this.contactID = contactID;
+		this.contactName = contactName;
+		this.dateTime = dateTime;
+		this.snippet = snippet;
+		this.score = score;
+	}
+
+	public long getMessageID() {
+		return messageID;
+	}
+
+	public long getContactID() {
+		return contactID;
+	}
+
+	public String getContactName() {
+		return contactName;
+	}
+
+	public long getDateTime() {
+		return dateTime;
+	}
+
+	/**
+	 * @return the matching part of the message, with matches in bold.
+	 */
+	public String getSnippet() {
+		return snippet;
+	}
+
+	public double getScore() {
+		return score;
+	}
+
+	/**
+	 * Best match first, newest first among equal scores.
+	 */
+	@Override
+	public int compareTo(SearchHit another) {
+		if (score != another.score) {
+			return score > another.score ? -1 : 1;
+		}
+		if (dateTime != another.dateTime) {
+			return dateTime > another.dateTime ? -1 : 1;
+		}
+		return 0;
+	}
+}
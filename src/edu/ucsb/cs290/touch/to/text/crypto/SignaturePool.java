@@ -0,0 +1,337 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.DSAParams;
+import java.security.interfaces.DSAPrivateKey;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.spongycastle.asn1.ASN1EncodableVector;
+import org.spongycastle.asn1.DERInteger;
+import org.spongycastle.asn1.DERSequence;
+import org.spongycastle.crypto.digests.SHA1Digest;
+
+import android.util.Log;
+
+/**
+ * The message-independent half of DSA signing done ahead of time. A DSA
+ * signature needs a fresh k, r = (g^k mod p) mod q and k^-1 mod q, which
+ * cost a full exponentiation, before a few multiplications mod q that
+ * depend on the message. This keeps up to {@link #getDepth()} such tuples
+ * per DSA group, computed on a low-priority thread, so that signing only
+ * does the cheap part.
+ *
+ * Tuples are as secret as the private key: they live only in memory, each
+ * one is handed out once, and all of them are dropped on {@link #close()}.
+ * When a group's pool is empty, {@link #newSignature} returns the stock
+ * signer and the pool is refilled behind it.
+ */
+class SignaturePool {
+
+	private static final String TAG = "touch-to-text";
+
+	static final int DEFAULT_DEPTH = 16;
+
+	private static final class Tuple {
+		final BigInteger r;
+		final BigInteger kInverse;
+
+		Tuple(BigInteger r, BigInteger kInverse) {
+			this.r = r;
+			this.kInverse = kInverse;
+		}
+	}
+
+	/**
+	 * SHA1withDSA with the tuple already chosen. Signs once; verification
+	 * goes through the stock signer.
+	 */
+	private static final class Presigned extends Signature {
+		private final Tuple tuple;
+		private final SHA1Digest digest = new SHA1Digest();
+		private DSAPrivateKey key;
+
+		Presigned(Tuple tuple) {
+			super("DSA");
+			this.tuple = tuple;
+		}
+
+		@Override
+		protected void engineInitSign(PrivateKey privateKey)
+				throws InvalidKeyException {
+			if (!(privateKey instanceof DSAPrivateKey)) {
+				throw new InvalidKeyException("Not a DSA key");
+			}
+			key = (DSAPrivateKey) privateKey;
+			digest.reset();
+		}
+
+		@Override
+		protected void engineInitVerify(PublicKey publicKey)
+				throws InvalidKeyException {
+			throw new InvalidKeyException("Pooled signatures only sign");
+		}
+
+		@Override
+		protected void engineUpdate(byte b) {
+			digest.update(b);
+		}
+
+		@Override
+		protected void engineUpdate(byte[] b, int off, int len) {
+			digest.update(b, off, len);
+		}
+
+		@Override
+		protected byte[] engineSign() throws SignatureException {
+			byte[] hash = new byte[digest.getDigestSize()];
+			digest.doFinal(hash, 0);
+			BigInteger q = key.getParams().getQ();
+			// s = k^-1 (H(m) + x r) mod q
+			BigInteger s = tuple.kInverse.multiply(
+					truncate(hash, q).add(key.getX().multiply(tuple.r))).mod(q);
+			if (s.signum() == 0) {
+				throw new SignatureException("Degenerate DSA signature");
+			}
+			ASN1EncodableVector v = new ASN1EncodableVector();
+			v.add(new DERInteger(tuple.r));
+			v.add(new DERInteger(s));
+			try {
+				return new DERSequence(v).getEncoded();
+			} catch (IOException e) {
+				throw new SignatureException(e.getMessage());
+			}
+		}
+
+		@Override
+		protected boolean engineVerify(byte[] sigBytes)
+				throws SignatureException {
+			throw new SignatureException("Pooled signatures only sign");
+		}
+
+		@Override
+		@Deprecated
+		protected void engineSetParameter(String param, Object value) {
+			throw new InvalidParameterException(param);
+		}
+
+		@Override
+		@Deprecated
+		protected Object engineGetParameter(String param) {
+			throw new InvalidParameterException(param);
+		}
+
+		/**
+		 * The hash as an integer, cut to q's length as SpongyCastle's
+		 * DSASigner does.
+		 */
+		private static BigInteger truncate(byte[] hash, BigInteger q) {
+			if (q.bitLength() >= hash.length * 8) {
+				return new BigInteger(1, hash);
+			}
+			byte[] trunc = new byte[q.bitLength() / 8];
+			System.arraycopy(hash, 0, trunc, 0, trunc.length);
+			return new BigInteger(1, trunc);
+		}
+	}
+
+	private final SecureRandom random = new SecureRandom();
+	// Guards pools, groups and refilling; keyed by the group's p
+	private final Map<BigInteger, ArrayDeque<Tuple>> pools = new HashMap<BigInteger, ArrayDeque<Tuple>>();
+	private final Map<BigInteger, DSAParams> groups = new HashMap<BigInteger, DSAParams>();
+	private final Set<BigInteger> refilling = new HashSet<BigInteger>();
+	private final ExecutorService precomputer = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SignaturePool");
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+	private volatile int depth = DEFAULT_DEPTH;
+	private volatile boolean closed = false;
+
+	// Metrics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong precomputed = new AtomicLong();
+	private final AtomicLong precomputeNanos = new AtomicLong();
+
+	/**
+	 * Keep tuples ready for signatures with this key's group.
+	 */
+	void watch(PrivateKey key) {
+		if (key instanceof DSAPrivateKey) {
+			refillIfLow(group((DSAPrivateKey) key));
+		}
+	}
+
+	/**
+	 * A signer for key that only has the cheap step left, or the stock
+	 * "DSA" signer if no tuple is ready. Either way, initSign it with key
+	 * and sign once.
+	 */
+	Signature newSignature(PrivateKey key) throws GeneralSecurityException {
+		if (key instanceof DSAPrivateKey) {
+			BigInteger p = group((DSAPrivateKey) key);
+			Tuple t;
+			synchronized (pools) {
+				t = poolFor(p).poll();
+			}
+			refillIfLow(p);
+			if (t != null) {
+				hits.incrementAndGet();
+				return new Presigned(t);
+			}
+		}
+		misses.incrementAndGet();
+		return Signature.getInstance("DSA", "SC");
+	}
+
+	/**
+	 * How many tuples to keep ready for each group. Takes effect at the
+	 * next refill.
+	 */
+	void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Stop precomputing and forget every tuple.
+	 */
+	void close() {
+		closed = true;
+		precomputer.shutdownNow();
+		try {
+			precomputer.awaitTermination(2, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Log.i(TAG, statistics());
+		synchronized (pools) {
+			pools.clear();
+			groups.clear();
+		}
+	}
+
+	String statistics() {
+		int ready = 0;
+		synchronized (pools) {
+			for (ArrayDeque<Tuple> q : pools.values()) {
+				ready += q.size();
+			}
+		}
+		long n = precomputed.get();
+		long taken = hits.get() + misses.get();
+		return "Signature pool: " + ready + " ready (depth " + depth + "), "
+				+ hits.get() + " hits and " + misses.get() + " misses"
+				+ (taken == 0 ? "" : " (" + (100 * hits.get() / taken)
+						+ "% hits)") + ", " + n + " precomputed"
+				+ (n == 0 ? "" : String.format(" at %.1f ms each",
+						precomputeNanos.get() / 1e6 / n));
+	}
+
+	private BigInteger group(DSAPrivateKey key) {
+		DSAParams params = key.getParams();
+		synchronized (pools) {
+			if (!groups.containsKey(params.getP())) {
+				groups.put(params.getP(), params);
+			}
+		}
+		return params.getP();
+	}
+
+	private ArrayDeque<Tuple> poolFor(BigInteger p) {
+		ArrayDeque<Tuple> q = pools.get(p);
+		if (q == null) {
+			q = new ArrayDeque<Tuple>();
+			pools.put(p, q);
+		}
+		return q;
+	}
+
+	private void refillIfLow(final BigInteger p) {
+		final DSAParams params;
+		synchronized (pools) {
+			// Top up once half the pool is gone
+			if (closed || refilling.contains(p)
+					|| poolFor(p).size() > depth / 2) {
+				return;
+			}
+			refilling.add(p);
+			params = groups.get(p);
+		}
+		try {
+			precomputer.execute(new Runnable() {
+				@Override
+				public void run() {
+					refill(p, params);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			done(p);
+		}
+	}
+
+	private void refill(BigInteger p, DSAParams params) {
+		try {
+			BigInteger q = params.getQ();
+			while (!closed) {
+				synchronized (pools) {
+					if (poolFor(p).size() >= depth) {
+						return;
+					}
+				}
+				long start = System.nanoTime();
+				BigInteger k;
+				do {
+					k = new BigInteger(q.bitLength(), random);
+				} while (k.signum() == 0 || k.compareTo(q) >= 0);
+				BigInteger r = params.getG().modPow(k, p).mod(q);
+				if (r.signum() == 0) {
+					continue;
+				}
+				Tuple t = new Tuple(r, k.modInverse(q));
+				precomputeNanos.addAndGet(System.nanoTime() - start);
+				precomputed.incrementAndGet();
+				synchronized (pools) {
+					if (closed) {
+						return;
+					}
+					poolFor(p).add(t);
+				}
+			}
+		} finally {
+			done(p);
+		}
+	}
+
+	private void done(BigInteger p) {
+		synchronized (pools) {
+			refilling.remove(p);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+/**
+ * Compiled statements for the fixed set of writes done for every message,
+ * and the duplicate check done before each one is decrypted, so SQLite
+ * parses each one once per unlock instead of once per call. The writer
+ * thread has its own cache for the writes; the lock is there so the
+ * counters can be read from elsewhere, and so several receiving threads
+ * can share one for the lookup.
+ */
+class StatementCache {
+
+	enum Statement {
+		// OR IGNORE: a redelivered message hits the unique digest index
+		INSERT_MESSAGE("INSERT OR IGNORE INTO " + DatabaseHelper.MESSAGES_TABLE + " ("
+				+ DatabaseHelper.MESSAGE_BODY + ", "
+				+ DatabaseHelper.DATE_TIME + ", "
+				+ DatabaseHelper.RECIPIENT_ID + ", "
+				+ DatabaseHelper.SENDER_ID + ", "
+				+ DatabaseHelper.CONVERSATION_ID + ", "
+				+ DatabaseHelper.PLAIN_BODY + ", "
+				+ DatabaseHelper.DIRECTION + ", "
+				+ DatabaseHelper.VERIFICATION + ", "
+				+ DatabaseHelper.READ + ", "
+				+ DatabaseHelper.DIGEST
+				+ ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"),
+		UPDATE_LAST_CONTACTED("UPDATE " + DatabaseHelper.CONTACTS_TABLE
+				+ " SET " + DatabaseHelper.DATE_TIME + " = ? WHERE "
+				+ DatabaseHelper.CONTACTS_ID + " = ?"),
+		UPDATE_CONTACT_KEY("UPDATE " + DatabaseHelper.CONTACTS_TABLE + " SET "
+				+ DatabaseHelper.PUBLIC_KEY + " = ?, "
+				+ DatabaseHelper.CONTACT_TOKEN + " = ? WHERE "
+				+ DatabaseHelper.CONTACTS_ID + " = ?"),
+		UPDATE_OUTGOING_TOKEN("UPDATE " + DatabaseHelper.CONTACTS_TABLE
+				+ " SET " + DatabaseHelper.CONTACT_TOKEN + " = ? WHERE "
+				+ DatabaseHelper.CONTACTS_ID + " = ?"),
+		DELETE_POOLED_TOKEN("DELETE FROM " + DatabaseHelper.TOKEN_POOL_TABLE
+				+ " WHERE " + DatabaseHelper.TOKEN_POOL_ID + " = ?"),
+		// Through the unique digest index, see RecentDigests
+		COUNT_DIGEST("SELECT COUNT(*) FROM " + DatabaseHelper.MESSAGES_TABLE
+				+ " WHERE " + DatabaseHelper.DIGEST + " = ?");
+
+		final String sql;
+
+		Statement(String sql) {
+			this.sql = sql;
+		}
+	}
+
+	private static final class Compiled {
+		final SQLiteStatement statement;
+		long executions;
+		long nanos;
+
+		Compiled(SQLiteStatement statement) {
+			this.statement = statement;
+		}
+	}
+
+	private final Map<Statement, Compiled> compiled = new EnumMap<Statement, Compiled>(
+			Statement.class);
+	private SQLiteDatabase db;
+
+	/**
+	 * Execute a statement with the given arguments bound in order. Supported
+	 * argument types are Long, Integer, String, byte[] and null.
+	 *
+	 * @return the new row ID for inserts, -1 otherwise
+	 */
+	synchronized long execute(SQLiteDatabase database, Statement which, Object... args) {
+		long start = System.nanoTime();
+		Compiled c = get(database, which);
+		SQLiteStatement s = c.statement;
+		s.clearBindings();
+		for (int i = 0; i < args.length; i++) {
+			bind(s, i + 1, args[i]);
+		}
+		long id = -1;
+		if (which == Statement.INSERT_MESSAGE) {
+			id = s.executeInsert();
+		} else {
+			s.execute();
+		}
+		c.executions++;
+		c.nanos += System.nanoTime() - start;
+		return id;
+	}
+
+	/**
+	 * Run a statement that returns a single number, with the given arguments
+	 * bound in order.
+	 */
+	synchronized long queryForLong(SQLiteDatabase database, Statement which,
+			Object... args) {
+		long start = System.nanoTime();
+		Compiled c = get(database, which);
+		SQLiteStatement s = c.statement;
+		s.clearBindings();
+		for (int i = 0; i < args.length; i++) {
+			bind(s, i + 1, args[i]);
+		}
+		long result = s.simpleQueryForLong();
+		c.executions++;
+		c.nanos += System.nanoTime() - start;
+		return result;
+	}
+
+	private Compiled get(SQLiteDatabase database, Statement which) {
+		if (database != db) {
+			// Statements belong to the handle that compiled them.
+			close();
+			db = database;
+		}
+		Compiled c = compiled.get(which);
+		if (c == null) {
+			c = new Compiled(db.compileStatement(which.sql));
+			compiled.put(which, c);
+		}
+		return c;
+	}
+
+	private static void bind(SQLiteStatement s, int index, Object arg) {
+		if (arg == null) {
+			s.bindNull(index);
+		} else if (arg instanceof Long || arg instanceof Integer) {
+			s.bindLong(index, ((Number) arg).longValue());
+		} else if (arg instanceof String) {
+			s.bindString(index, (String) arg);
+		} else if (arg instanceof byte[]) {
+			s.bindBlob(index, (byte[]) arg);
+		} else {
+			throw new IllegalArgumentException("Can't bind "
+					+ arg.getClass().getName());
+		}
+	}
+
+	synchronized void close() {
+		for (Compiled c : compiled.values()) {
+			c.statement.close();
+		}
+		compiled.clear();
+		db = null;
+	}
+
+	/**
+	 * @return executions and mean time per statement this session
+	 */
+	synchronized String statistics() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Statement, Compiled> e : compiled.entrySet()) {
+			Compiled c = e.getValue();
+			sb.append(e.getKey()).append(": ").append(c.executions)
+					.append(" runs, ")
+					.append(c.executions == 0 ? 0 : c.nanos / c.executions / 1000)
+					.append(" us avg; ");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,317 @@
+package edu.ucsb.cs290.touch.to.text.crypto;
+
+import java.security.SignedObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Log;
+import edu.ucsb.cs290.touch.to.text.remote.Helpers;
+
+/**
+ * Outgoing tokens signed ahead of time, so that sending or receiving a
+ * message takes a ready token instead of running a DSA signature on the
+ * spot. Every contact keeps up to {@link #getDepth()} spares, filled as
+ * soon as it is added, so even the first message to it finds one ready.
+ * They are signed on a low-priority thread and kept in the encrypted
+ * database's token pool table, so they survive a restart. A token is
+ * only handed out once its row is committed, and taking it queues the
+ * row's deletion.
+ *
+ * When a contact's pool is empty anyway, e.g. several sends in a row
+ * outrun the refill, the token is signed on the spot with a tuple from the
+ * {@link SignaturePool}, which leaves only a few multiplications for the
+ * caller, and the pool is refilled behind it.
+ */
+class TokenPool {
+
+	private static final String TAG = "touch-to-text";
+
+	static final int DEFAULT_DEPTH = 4;
+
+	private static final class Pooled {
+		final long rowID;
+		final SignedObject token;
+
+		Pooled(long rowID, SignedObject token) {
+			this.rowID = rowID;
+			this.token = token;
+		}
+	}
+
+	private final DatabaseHelper helper;
+	// Guards pools and refilling
+	private final Map<Long, ArrayDeque<Pooled>> pools = new HashMap<Long, ArrayDeque<Pooled>>();
+	// Contacts with a refill queued, signing or waiting to commit
+	private final Set<Long> refilling = new HashSet<Long>();
+	private final ExecutorService signer = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TokenPool");
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+	private volatile int depth = DEFAULT_DEPTH;
+	private volatile boolean closed = false;
+
+	// Metrics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong refills = new AtomicLong();
+	private final AtomicLong tokensSigned = new AtomicLong();
+	private final AtomicLong refillNanos = new AtomicLong();
+
+	TokenPool(DatabaseHelper helper) {
+		this.helper = helper;
+	}
+
+	/**
+	 * Pick up the tokens stored by an earlier session and top up every
+	 * contact.
+	 */
+	void load(SQLiteDatabase db) {
+		Cursor c = db.query(DatabaseHelper.TOKEN_POOL_TABLE, new String[] {
+				DatabaseHelper.TOKEN_POOL_ID, DatabaseHelper.TOKEN_POOL_CONTACT,
+				DatabaseHelper.TOKEN_POOL_TOKEN }, null, null, null, null,
+				DatabaseHelper.TOKEN_POOL_ID + " ASC");
+		Set<Long> contacts;
+		try {
+			synchronized (pools) {
+				while (c.moveToNext()) {
+					poolFor(c.getLong(1)).add(
+							new Pooled(c.getLong(0), (SignedObject) Helpers
+									.deserialize(c.getBlob(2))));
+				}
+				contacts = new HashSet<Long>(pools.keySet());
+			}
+		} finally {
+			c.close();
+		}
+		// Contacts added before the pool existed, or whose refill was cut
+		// short before it committed
+		c = db.query(DatabaseHelper.CONTACTS_TABLE,
+				new String[] { DatabaseHelper.CONTACTS_ID }, null, null, null,
+				null, null);
+		try {
+			while (c.moveToNext()) {
+				contacts.add(c.getLong(0));
+			}
+		} finally {
+			c.close();
+		}
+		for (long contactID : contacts) {
+			refillIfLow(contactID);
+		}
+	}
+
+	/**
+	 * A token to hand out to a contact, taken from the pool if it has one.
+	 * The pool is then topped up.
+	 *
+	 * @return the token, or null if the pool was empty and signing failed
+	 */
+	SignedObject take(long contactID) {
+		Pooled p;
+		synchronized (pools) {
+			p = poolFor(contactID).poll();
+		}
+		refillIfLow(contactID);
+		if (p == null) {
+			misses.incrementAndGet();
+			return helper.newOutgoingToken();
+		}
+		hits.incrementAndGet();
+		DatabaseWriter writer = helper.getWriter();
+		if (writer != null) {
+			writer.execute(StatementCache.Statement.DELETE_POOLED_TOKEN,
+					p.rowID);
+		}
+		return p.token;
+	}
+
+	/**
+	 * Start signing spare tokens for a contact that was just added.
+	 */
+	void prefill(long contactID) {
+		refillIfLow(contactID);
+	}
+
+	/**
+	 * How many spare tokens each contact keeps. Takes effect at the next
+	 * refill.
+	 */
+	void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return tokens ready across every contact
+	 */
+	int getReadyCount() {
+		synchronized (pools) {
+			int ready = 0;
+			for (ArrayDeque<Pooled> q : pools.values()) {
+				ready += q.size();
+			}
+			return ready;
+		}
+	}
+
+	/**
+	 * @return mean milliseconds from asking for a refill until its tokens
+	 *         can be taken, or 0 before the first refill
+	 */
+	double getMeanRefillMillis() {
+		long n = refills.get();
+		return n == 0 ? 0 : refillNanos.get() / 1e6 / n;
+	}
+
+	/**
+	 * Drop the tokens held in memory, e.g. after the tables were dropped.
+	 */
+	void clear() {
+		synchronized (pools) {
+			pools.clear();
+		}
+	}
+
+	/**
+	 * Stop signing. Refills still running are abandoned; whatever they
+	 * already committed is picked up by the next {@link #load}.
+	 */
+	void close() {
+		closed = true;
+		signer.shutdownNow();
+		try {
+			signer.awaitTermination(2, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Log.i(TAG, statistics());
+		clear();
+	}
+
+	String statistics() {
+		long taken = hits.get() + misses.get();
+		return "Token pool: " + getReadyCount() + " ready (depth " + depth
+				+ "), " + hits.get() + " hits and " + misses.get()
+				+ " misses" + (taken == 0 ? "" : " ("
+				+ (100 * hits.get() / taken) + "% hits)") + ", "
+				+ tokensSigned.get() + " signed in " + refills.get()
+				+ " refills of " + String.format("%.1f", getMeanRefillMillis())
+				+ " ms mean";
+	}
+
+	private ArrayDeque<Pooled> poolFor(long contactID) {
+		ArrayDeque<Pooled> q = pools.get(contactID);
+		if (q == null) {
+			q = new ArrayDeque<Pooled>();
+			pools.put(contactID, q);
+		}
+		return q;
+	}
+
+	private void refillIfLow(final long contactID) {
+		final int missing;
+		synchronized (pools) {
+			if (closed || refilling.contains(contactID)) {
+				return;
+			}
+			missing = depth - poolFor(contactID).size();
+			if (missing <= 0) {
+				return;
+			}
+			refilling.add(contactID);
+		}
+		final long requested = System.nanoTime();
+		try {
+			signer.execute(new Runnable() {
+				@Override
+				public void run() {
+					refill(contactID, missing, requested);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			done(contactID);
+		}
+	}
+
+	private void refill(final long contactID, int missing,
+			final long requested) {
+		final List<SignedObject> fresh = new ArrayList<SignedObject>(missing);
+		for (int i = 0; i < missing && !closed; i++) {
+			SignedObject token = helper.newOutgoingToken();
+			if (token == null) {
+				break;
+			}
+			fresh.add(token);
+		}
+		DatabaseWriter writer = helper.getWriter();
+		if (closed || fresh.isEmpty() || writer == null) {
+			done(contactID);
+			return;
+		}
+		writer.enqueue(new DatabaseWriter.Write() {
+			private final long[] rowIDs = new long[fresh.size()];
+
+			@Override
+			void apply(SQLiteDatabase db) {
+				ContentValues values = new ContentValues();
+				for (int i = 0; i < rowIDs.length; i++) {
+					values.put(DatabaseHelper.TOKEN_POOL_CONTACT, contactID);
+					values.put(DatabaseHelper.TOKEN_POOL_TOKEN,
+							Helpers.serialize(fresh.get(i)));
+					rowIDs[i] = db.insert(DatabaseHelper.TOKEN_POOL_TABLE,
+							null, values);
+				}
+			}
+
+			@Override
+			void committed(boolean success) {
+				if (success && !closed) {
+					synchronized (pools) {
+						ArrayDeque<Pooled> q = poolFor(contactID);
+						for (int i = 0; i < rowIDs.length; i++) {
+							if (rowIDs[i] != -1) {
+								q.add(new Pooled(rowIDs[i], fresh.get(i)));
+							}
+						}
+					}
+					tokensSigned.addAndGet(fresh.size());
+					refills.incrementAndGet();
+					refillNanos.addAndGet(System.nanoTime() - requested);
+				}
+				done(contactID);
+				if (success) {
+					// Tokens taken while this refill ran
+					refillIfLow(contactID);
+				}
+			}
+		});
+	}
+
+	private void done(long contactID) {
+		synchronized (pools) {
+			refilling.remove(contactID);
+		}
+	}
+}